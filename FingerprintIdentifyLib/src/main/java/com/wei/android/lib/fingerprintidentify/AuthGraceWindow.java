@@ -0,0 +1,175 @@
+package com.wei.android.lib.fingerprintidentify;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.wei.android.lib.fingerprintidentify.base.BaseFingerprint;
+import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyFailInfo;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+
+// the last successful identify of the process, dropped on screen off, when the app goes to background
+// or on clear(). no cipher is kept, a hit gets a fresh decrypt cipher of the key the identify unlocked
+class AuthGraceWindow {
+
+    private static volatile AuthGraceWindow sInstance;
+
+    private final Object mLock = new Object();
+    private Entry mEntry;                       // guarded by mLock
+    private final Set<Activity> mStartedActivities = new HashSet<>();   // main thread only
+
+    static AuthGraceWindow get(Context context) {
+        AuthGraceWindow instance = sInstance;
+        if (instance == null) {
+            synchronized (AuthGraceWindow.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    sInstance = instance = new AuthGraceWindow(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private AuthGraceWindow(Context appContext) {
+        appContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                clear();
+            }
+        }, new IntentFilter(Intent.ACTION_SCREEN_OFF));
+
+        if (appContext instanceof Application) {
+            ((Application) appContext).registerActivityLifecycleCallbacks(new BackgroundCallbacks());
+        }
+    }
+
+    // the authorized entry matching the identify, null if there is none within the ttl
+    @Nullable
+    Entry find(String fingerprintClassName, int cipherMode, byte[] cipherIV, long ttlMillis) {
+        synchronized (mLock) {
+            Entry entry = mEntry;
+            if (entry == null || getRemainingMillis(entry, ttlMillis) <= 0) {
+                return null;
+            }
+            if (entry.mCipherMode != Cipher.DECRYPT_MODE || cipherMode != Cipher.DECRYPT_MODE
+                    || !entry.mFingerprintClassName.equals(fingerprintClassName)
+                    || !Arrays.equals(entry.mCipherIV, cipherIV)) {
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    long getRemainingMillis(long ttlMillis) {
+        synchronized (mLock) {
+            return mEntry == null ? 0 : Math.max(0, getRemainingMillis(mEntry, ttlMillis));
+        }
+    }
+
+    void clear() {
+        synchronized (mLock) {
+            mEntry = null;
+        }
+    }
+
+    // record the success of the session, then pass it on
+    BaseFingerprint.IdentifyListener record(final BaseFingerprint.IdentifyListener listener,
+                                            final String fingerprintClassName,
+                                            final int cipherMode, final byte[] cipherIV) {
+        return new BaseFingerprint.IdentifyListener() {
+            @Override
+            public void onSucceed(@Nullable Cipher cipher) {
+                Entry entry = new Entry(fingerprintClassName, cipherMode, cipherIV);
+                synchronized (mLock) {
+                    mEntry = entry;
+                }
+                listener.onSucceed(cipher);
+            }
+
+            @Override
+            public void onNotMatch(int availableTimes) {
+                listener.onNotMatch(availableTimes);
+            }
+
+            @Override
+            public void onFailed(FingerprintIdentifyFailInfo failInfo) {
+                listener.onFailed(failInfo);
+            }
+
+            @Override
+            public void onStartFailedByDeviceLocked() {
+                listener.onStartFailedByDeviceLocked();
+            }
+        };
+    }
+
+    private static long getRemainingMillis(Entry entry, long ttlMillis) {
+        return entry.mAuthorizedAt + ttlMillis - SystemClock.elapsedRealtime();
+    }
+
+    static class Entry {
+
+        final long mAuthorizedAt = SystemClock.elapsedRealtime();
+        final String mFingerprintClassName;
+        final int mCipherMode;
+        final byte[] mCipherIV;
+
+        Entry(String fingerprintClassName, int cipherMode, byte[] cipherIV) {
+            mFingerprintClassName = fingerprintClassName;
+            mCipherMode = cipherMode;
+            mCipherIV = cipherIV == null ? null : cipherIV.clone();
+        }
+    }
+
+    // the started activities themselves, not a count: the stop of an activity started before the registration
+    // must not cancel out the start of the next one, only a stop leaving nothing started clears
+    private class BackgroundCallbacks implements Application.ActivityLifecycleCallbacks {
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+            mStartedActivities.add(activity);
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            mStartedActivities.remove(activity);
+            if (mStartedActivities.isEmpty() && !activity.isChangingConfigurations()) {
+                clear();
+            }
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            mStartedActivities.remove(activity);
+        }
+    }
+}
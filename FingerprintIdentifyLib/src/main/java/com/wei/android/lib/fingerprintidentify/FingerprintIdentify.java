@@ -1,12 +1,42 @@
 package com.wei.android.lib.fingerprintidentify;
 
 import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 
 import com.wei.android.lib.fingerprintidentify.base.BaseFingerprint;
-import com.wei.android.lib.fingerprintidentify.impl.AndroidFingerprint;
+import com.wei.android.lib.fingerprintidentify.base.CancelHandle;
+import com.wei.android.lib.fingerprintidentify.base.FingerprintProvider;
+import com.wei.android.lib.fingerprintidentify.base.IdentifyEventPublisher;
+import com.wei.android.lib.fingerprintidentify.bean.FingerprintCapability;
+import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyEvent;
+import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyFailInfo;
+import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyResult;
 import com.wei.android.lib.fingerprintidentify.impl.BiometricImpl;
-import com.wei.android.lib.fingerprintidentify.impl.MeiZuFingerprint;
-import com.wei.android.lib.fingerprintidentify.impl.SamsungFingerprint;
+import com.wei.android.lib.fingerprintidentify.impl.FingerprintProviders;
+import com.wei.android.lib.fingerprintidentify.util.CapabilityCache;
+import com.wei.android.lib.fingerprintidentify.util.CryptoObjectHelper;
+import com.wei.android.lib.fingerprintidentify.util.ExecutorUtils;
+import com.wei.android.lib.fingerprintidentify.util.LockoutTracker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.crypto.Cipher;
 
@@ -35,6 +65,8 @@ import javax.crypto.Cipher;
  */
 public class FingerprintIdentify {
 
+    private static final long DEFAULT_PROBE_TIMEOUT_MILLIS = 1500;
+
     protected Context mContext;
     protected BaseFingerprint.ExceptionListener mExceptionListener;
 
@@ -51,6 +83,32 @@ public class FingerprintIdentify {
 
     private boolean mUseBiometricApi = false;
 
+    private boolean mIsKeyRotationEnable = false;                   // if encrypt with a key generated in background
+
+    private boolean mIsParallelProbe = false;                       // if probe the backends concurrently
+    private long mProbeTimeoutMillis = DEFAULT_PROBE_TIMEOUT_MILLIS;  // total deadline of the parallel probe
+
+    private final List<FingerprintProvider> mCustomProviders = new CopyOnWriteArrayList<>();
+    private final List<String> mTimedOutProbes = new CopyOnWriteArrayList<>();   // class names of the timed out backends
+
+    private boolean mIsCapabilityCacheEnable = false;               // if answer init() from the persisted capability
+    private volatile FingerprintCapability mCachedCapability;
+    private volatile Future<?> mPendingProbe;                       // initAsync or re-validation of the cached capability
+    private final List<Runnable> mPendingActions = new ArrayList<>(); // identify calls made while probing
+    private Runnable mPendingBrokeredStart;                         // the broker's queued start, guarded by mPendingActions
+
+    private Executor mCallbackExecutor = ExecutorUtils.mainThread();   // where the identify listener is called
+    private boolean mIsUseSensorThread = false;                     // if backend callbacks run on a library thread
+    private int mCanAuthenticateResult = -1;
+    private volatile Future<?> mAsyncIdentify;                      // the future of the running startIdentifyAsync
+    private final IdentifyEventPublisher mEventPublisher = new IdentifyEventPublisher();
+    private final IdentifySessionBroker mSessionBroker = new IdentifySessionBroker(this);
+
+    private volatile long mGraceWindowMillis = 0;                   // reuse a success within it, 0 to disable
+    private boolean mIsAutoResumeAfterLockout = false;              // if start again when the lockout expired
+    private boolean mIsContinuousMode = false;                      // if arm again after every result
+    private boolean mIsMultiResultSession = false;                  // the running identify is a plain startIdentify
+
     public FingerprintIdentify(Context context) {
         mContext = context;
     }
@@ -68,11 +126,36 @@ public class FingerprintIdentify {
         return this.mCipherMode;
     }
 
+    // decryption must use the same setting as the encryption did
+    public void setKeyRotationEnable(boolean keyRotationEnable) {
+        mIsKeyRotationEnable = keyRotationEnable;
+        if (keyRotationEnable) {
+            CryptoObjectHelper.preGenerateStagedKey(mContext);
+        }
+    }
+
+    // ExecutorUtils.mainThread() by default, see also ExecutorUtils.mainThreadOrInline() and ExecutorUtils.direct()
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor != null ? callbackExecutor : ExecutorUtils.mainThread();
+        if (mFingerprint != null) {
+            mFingerprint.setCallbackExecutor(mCallbackExecutor);
+        }
+    }
+
+    // handle sensor and crypto callbacks on a library owned thread, the listener still uses the callback executor
+    public void setUseSensorThread(boolean useSensorThread) {
+        mIsUseSensorThread = useSensorThread;
+    }
+
     public void setUseBiometricApi(boolean on) {
         mUseBiometricApi = on;
     }
 
     public boolean isUsingBiometricApi() {
+        FingerprintCapability capability = getUnconfirmedCapability();
+        if (capability != null) {
+            return BiometricImpl.class.getName().equals(capability.fingerprintClassName);
+        }
         return mFingerprint instanceof BiometricImpl;
     }
 
@@ -82,66 +165,570 @@ public class FingerprintIdentify {
 
     public void setExceptionListener(BaseFingerprint.ExceptionListener exceptionListener) {
         mExceptionListener = exceptionListener;
+        mEventPublisher.setExceptionListener(exceptionListener);
+    }
+
+    // observe every identify session besides its listener, e.g. for analytics or auditing
+    public IdentifyEventPublisher.Subscription subscribe(IdentifyEventPublisher.EventListener eventListener,
+                                                         Executor executor) {
+        return mEventPublisher.subscribe(eventListener, executor);
+    }
+
+    public IdentifyEventPublisher.Subscription subscribe(IdentifyEventPublisher.EventListener eventListener,
+                                                         Executor executor, int bufferSize) {
+        return mEventPublisher.subscribe(eventListener, executor, bufferSize);
+    }
+
+    public void setParallelProbe(boolean parallelProbe, long probeTimeoutMillis) {
+        if (parallelProbe && probeTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("probeTimeoutMillis must be positive");
+        }
+        mIsParallelProbe = parallelProbe;
+        mProbeTimeoutMillis = probeTimeoutMillis;
+    }
+
+    public void setCapabilityCacheEnable(boolean capabilityCacheEnable) {
+        mIsCapabilityCacheEnable = capabilityCacheEnable;
     }
 
     public void init() {
+        awaitPendingProbe();
+        mCachedCapability = null;
+        mPendingProbe = null;
 
-        if (mUseBiometricApi) {
-            BiometricImpl biometricImpl = new BiometricImpl(mContext, mExceptionListener);
-            if (biometricImpl.isHardwareEnable()) {
-                mSubFingerprint = biometricImpl;
-                if (biometricImpl.isRegisteredFingerprint()) {
-                    mFingerprint = biometricImpl;
+        if (!mIsCapabilityCacheEnable) {
+            probe(mIsParallelProbe);
+            return;
+        }
+
+        String stamp = CapabilityCache.createStamp(mContext, getProbeOptions());
+        FingerprintCapability cachedCapability = CapabilityCache.read(mContext, stamp);
+        if (cachedCapability == null) {
+            probe(mIsParallelProbe);
+            CapabilityCache.write(mContext, stamp, getProbedCapability());
+            return;
+        }
+
+        // answer from the cache, and re-validate it off the caller thread
+        mCachedCapability = cachedCapability;
+        startPendingProbe(ExecutorUtils.getBackgroundExecutor(), stamp, cachedCapability, null);
+    }
+
+    // probe on the executor, identify calls made meanwhile are queued until the probe finished
+    public void initAsync(Executor executor, @Nullable InitListener initListener) {
+        awaitPendingProbe();
+        mCachedCapability = null;
+        mPendingProbe = null;
+
+        String stamp = null;
+        FingerprintCapability cachedCapability = null;
+        if (mIsCapabilityCacheEnable) {
+            stamp = CapabilityCache.createStamp(mContext, getProbeOptions());
+            cachedCapability = CapabilityCache.read(mContext, stamp);
+            mCachedCapability = cachedCapability;
+        }
+
+        startPendingProbe(executor, stamp, cachedCapability, initListener);
+    }
+
+    private void startPendingProbe(Executor executor, final String stamp,
+                                   final FingerprintCapability cachedCapability,
+                                   final InitListener initListener) {
+        FutureTask<Void> pendingProbe = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                probe(cachedCapability == null && mIsParallelProbe);
+                if (stamp == null) {
                     return;
                 }
+
+                FingerprintCapability capability = getProbedCapability();
+                if (!capability.equals(cachedCapability)) {
+                    CapabilityCache.write(mContext, stamp, capability);
+                }
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                onPendingProbeFinished(this, initListener);
             }
+        };
+
+        mPendingProbe = pendingProbe;
+        executor.execute(pendingProbe);
+    }
+
+    private void onPendingProbeFinished(Future<?> pendingProbe, final InitListener initListener) {
+        try {
+            pendingProbe.get();
+        } catch (ExecutionException e) {
+            onCatchException(e.getCause());
+        } catch (Throwable e) {
+            onCatchException(e);
         }
 
-        AndroidFingerprint androidFingerprint = new AndroidFingerprint(mContext, mExceptionListener, mIsSupportAndroidL);
-        if (androidFingerprint.isHardwareEnable()) {
-            mSubFingerprint = androidFingerprint;
-            if (androidFingerprint.isRegisteredFingerprint()) {
-                mFingerprint = androidFingerprint;
-                return;
+        final List<Runnable> pendingActions;
+        synchronized (mPendingActions) {
+            pendingActions = new ArrayList<>(mPendingActions);
+            mPendingActions.clear();
+        }
+
+        if (initListener == null && pendingActions.isEmpty()) {
+            return;
+        }
+
+        ExecutorUtils.getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (initListener != null) {
+                    try {
+                        initListener.onInitFinished(FingerprintIdentify.this);
+                    } catch (Exception e) {
+                        onCatchException(e);
+                    }
+                }
+
+                for (Runnable action : pendingActions) {
+                    action.run();
+                }
+            }
+        });
+    }
+
+    // queue the action while probing, return false if it can run right now
+    private boolean enqueueUntilProbed(Runnable action) {
+        synchronized (mPendingActions) {
+            Future<?> pendingProbe = mPendingProbe;
+            if (pendingProbe == null || pendingProbe.isDone()) {
+                return false;
             }
+            mPendingActions.add(action);
+            return true;
+        }
+    }
+
+    private void probe(boolean parallel) {
+        mFingerprint = null;
+        mSubFingerprint = null;
+        mCanAuthenticateResult = -1;
+        mTimedOutProbes.clear();
+
+        List<FingerprintProvider> providers = getApplicableProviders();
+        if (parallel) {
+            probeInParallel(providers);
+            return;
         }
 
-        SamsungFingerprint samsungFingerprint = new SamsungFingerprint(mContext, mExceptionListener);
-        if (samsungFingerprint.isHardwareEnable()) {
-            mSubFingerprint = samsungFingerprint;
-            if (samsungFingerprint.isRegisteredFingerprint()) {
-                mFingerprint = samsungFingerprint;
+        for (FingerprintProvider provider : providers) {
+            BaseFingerprint fingerprint = createFingerprint(provider);
+            if (fingerprint != null && selectFingerprint(fingerprint)) {
                 return;
             }
         }
+    }
+
+    public void addFingerprintProvider(FingerprintProvider provider) {
+        mCustomProviders.add(provider);
+    }
 
-        MeiZuFingerprint meiZuFingerprint = new MeiZuFingerprint(mContext, mExceptionListener);
-        if (meiZuFingerprint.isHardwareEnable()) {
-            mSubFingerprint = meiZuFingerprint;
-            if (meiZuFingerprint.isRegisteredFingerprint()) {
-                mFingerprint = meiZuFingerprint;
+    protected List<FingerprintProvider> createProviders() {
+        List<FingerprintProvider> providers = new ArrayList<>(mCustomProviders);
+        if (mUseBiometricApi) {
+            providers.add(FingerprintProviders.biometric());
+        }
+        providers.add(FingerprintProviders.android(mIsSupportAndroidL));
+        providers.add(FingerprintProviders.samsung());
+        providers.add(FingerprintProviders.meiZu());
+
+        // stable, custom providers go first on equal priority
+        Collections.sort(providers, new Comparator<FingerprintProvider>() {
+            @Override
+            public int compare(FingerprintProvider o1, FingerprintProvider o2) {
+                return Integer.compare(o2.getPriority(), o1.getPriority());
+            }
+        });
+        return providers;
+    }
+
+    private List<FingerprintProvider> getApplicableProviders() {
+        List<FingerprintProvider> providers = createProviders();
+        Iterator<FingerprintProvider> iterator = providers.iterator();
+        while (iterator.hasNext()) {
+            FingerprintProvider provider = iterator.next();
+            try {
+                if (!provider.isApplicable()) {
+                    iterator.remove();
+                }
+            } catch (Throwable e) {
+                onCatchException(e);
+                iterator.remove();
             }
         }
+        return providers;
+    }
+
+    private BaseFingerprint createFingerprint(FingerprintProvider provider) {
+        try {
+            return provider.create(mContext, mExceptionListener);
+        } catch (Throwable e) {
+            onCatchException(e);
+            return null;
+        }
+    }
+
+    private void probeInParallel(List<FingerprintProvider> providers) {
+        ExecutorService executor = ExecutorUtils.getProbeExecutor();
+        List<Future<BaseFingerprint>> futures = new ArrayList<>(providers.size());
+        for (final FingerprintProvider provider : providers) {
+            futures.add(executor.submit(new Callable<BaseFingerprint>() {
+                @Override
+                public BaseFingerprint call() {
+                    return createFingerprint(provider);
+                }
+            }));
+        }
+
+        // walk the results in priority order, so the selection is the same as the serial chain
+        long deadline = SystemClock.elapsedRealtime() + mProbeTimeoutMillis;
+        int index = 0;
+        for (; index < futures.size(); index++) {
+            BaseFingerprint fingerprint = null;
+            try {
+                long remaining = Math.max(0, deadline - SystemClock.elapsedRealtime());
+                fingerprint = futures.get(index).get(remaining, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                futures.get(index).cancel(true);
+                mTimedOutProbes.add(providers.get(index).getFingerprintClassName());
+            } catch (Throwable e) {
+                onCatchException(e);
+            }
+
+            if (fingerprint != null && selectFingerprint(fingerprint)) {
+                break;
+            }
+        }
+
+        // lower priority probes are not needed any more
+        for (index++; index < futures.size(); index++) {
+            futures.get(index).cancel(true);
+        }
+    }
+
+    private boolean selectFingerprint(BaseFingerprint fingerprint) {
+        if (fingerprint instanceof BiometricImpl) {
+            mCanAuthenticateResult = ((BiometricImpl) fingerprint).getCanAuthenticateResult();
+        }
+
+        if (fingerprint.isHardwareEnable()) {
+            mSubFingerprint = fingerprint;
+            if (fingerprint.isRegisteredFingerprint()) {
+                mFingerprint = fingerprint;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getProbeOptions() {
+        StringBuilder options = new StringBuilder();
+        for (FingerprintProvider provider : createProviders()) {
+            options.append(provider.getFingerprintClassName()).append(',');
+        }
+        return options.append("androidL=").append(mIsSupportAndroidL).toString();
+    }
+
+    private FingerprintCapability getProbedCapability() {
+        return new FingerprintCapability(mFingerprint == null ? null : mFingerprint.getClass().getName(),
+                mFingerprint != null && mFingerprint.isEnable(),
+                isProbedHardwareEnable(), isProbedRegisteredFingerprint(), mCanAuthenticateResult);
+    }
+
+    // the cached capability while still probing, or nothing enabled if there is no cache
+    private FingerprintCapability getUnconfirmedCapability() {
+        Future<?> pendingProbe = mPendingProbe;
+        if (pendingProbe == null || pendingProbe.isDone()) {
+            return null;
+        }
+
+        FingerprintCapability capability = mCachedCapability;
+        return capability != null ? capability : new FingerprintCapability();
+    }
+
+    private void awaitPendingProbe() {
+        Future<?> pendingProbe = mPendingProbe;
+        if (pendingProbe == null || pendingProbe.isDone()) {
+            return;
+        }
+
+        try {
+            pendingProbe.get();
+        } catch (Throwable e) {
+            onCatchException(e);
+        }
+    }
+
+    void onCatchException(Throwable exception) {
+        if (mExceptionListener != null && exception != null) {
+            mExceptionListener.onCatchException(exception);
+        }
     }
 
     // DO
     public void startIdentify(BaseFingerprint.IdentifyListener listener) {
-        if (!isFingerprintEnable()) {
-            return;
+        startIdentify(listener, 0);
+    }
+
+    // the listener gets onFailed with ERROR_TIMEOUT if the user did not finish within the timeout
+    public void startIdentify(BaseFingerprint.IdentifyListener listener, long timeoutMillis) {
+        abandonAsyncIdentify();
+        mSessionBroker.clear(IdentifySessionBroker.createPreemptedFailInfo());
+        startIdentify(listener, mCallbackExecutor, mCipherMode, mCipherIV, timeoutMillis, true, null);
+    }
+
+    // unlike startIdentify, share the running session if it uses the same cipher mode and IV, or wait for it
+    public IdentifySessionBroker.Request requestIdentify(BaseFingerprint.IdentifyListener listener) {
+        return requestIdentify(listener, 0);
+    }
+
+    public IdentifySessionBroker.Request requestIdentify(BaseFingerprint.IdentifyListener listener, int priority) {
+        abandonAsyncIdentify();
+        return mSessionBroker.request(listener, mCipherMode, mCipherIV, priority);
+    }
+
+    // within the window a decrypt identify with the same IV succeeds without the sensor, with a new cipher of the
+    // unlocked key. a per-operation key, e.g. the validity 0 key of a debug build, always identifies with the
+    // sensor, its cipher would init and only fail at doFinal
+    public void setGraceWindow(long graceWindowMillis) {
+        mGraceWindowMillis = graceWindowMillis;
+        if (graceWindowMillis > 0) {
+            AuthGraceWindow.get(mContext);
         }
+    }
+
+    // the authorized state, regardless of the cipher mode
+    public boolean isInGraceWindow() {
+        return getGraceWindowRemainingMillis() > 0;
+    }
 
-        mFingerprint.startIdentify(this.mMaxAvailableTimes,
-                this.mCipherMode, this.mCipherIV, listener);
+    public long getGraceWindowRemainingMillis() {
+        long graceWindowMillis = mGraceWindowMillis;
+        return graceWindowMillis > 0 ? AuthGraceWindow.get(mContext).getRemainingMillis(graceWindowMillis) : 0;
     }
 
-    public void cancelIdentify() {
+    public void clearGraceWindow() {
+        AuthGraceWindow.get(mContext).clear();
+    }
+
+    // the listener gets onFailed for the lockout, then the identify starts again with it when the lockout expired
+    public void setAutoResumeAfterLockout(boolean autoResumeAfterLockout) {
+        mIsAutoResumeAfterLockout = autoResumeAfterLockout;
+    }
+
+    // for shared terminals, the listener gets a result per user until cancelIdentify, see FingerprintMetrics
+    public void setContinuousMode(boolean continuousMode) {
+        mIsContinuousMode = continuousMode;
+        if (mFingerprint != null) {
+            mFingerprint.setContinuousMode(continuousMode && mIsMultiResultSession);
+        }
+    }
+
+    // 0 if the sensor is not temporarily locked out
+    public long getLockoutRemainingMillis() {
+        return LockoutTracker.getRemainingMillis();
+    }
+
+    // IdentifySessionBroker.POLICY_FIFO by default
+    public void setQueuePolicy(int policy) {
+        mSessionBroker.setPolicy(policy);
+    }
+
+    void startBrokeredSession(final BaseFingerprint.IdentifyListener listener, final int cipherMode,
+                              final byte[] cipherIV, final Runnable notEnableAction) {
+        Runnable brokeredStart = new Runnable() {
+            @Override
+            public void run() {
+                startIdentify(listener, mCallbackExecutor, cipherMode, cipherIV, 0, false, notEnableAction);
+            }
+        };
+        synchronized (mPendingActions) {
+            mPendingBrokeredStart = brokeredStart;
+        }
+        if (!enqueueUntilProbed(brokeredStart)) {
+            brokeredStart.run();
+        }
+    }
+
+    // only drop the broker's own start, other calls queued while probing still run
+    void cancelBrokeredSession() {
+        synchronized (mPendingActions) {
+            if (mPendingBrokeredStart != null) {
+                mPendingActions.remove(mPendingBrokeredStart);
+                mPendingBrokeredStart = null;
+            }
+        }
+
         if (mFingerprint != null) {
             mFingerprint.cancelIdentify();
         }
     }
 
-    public void resumeIdentify() {
+    // complete on the thread the backend delivered the result, chain the crypto and network work from there
+    @RequiresApi(Build.VERSION_CODES.N)
+    public CompletableFuture<FingerprintIdentifyResult> startIdentifyAsync(@Nullable ProgressListener progressListener) {
+        return startIdentifyAsync(ExecutorUtils.direct(), progressListener);
+    }
+
+    // cancelling the future cancels the identify, the progress listener is called on the executor too
+    @RequiresApi(Build.VERSION_CODES.N)
+    public CompletableFuture<FingerprintIdentifyResult> startIdentifyAsync(Executor executor,
+                                                                          @Nullable ProgressListener progressListener) {
+        abandonAsyncIdentify();
+        mSessionBroker.clear(IdentifySessionBroker.createPreemptedFailInfo());
+
+        final AsyncIdentify asyncIdentify = new AsyncIdentify(progressListener);
+        mAsyncIdentify = asyncIdentify;
+        startIdentify(asyncIdentify, executor, mCipherMode, mCipherIV, 0, false, new Runnable() {
+            @Override
+            public void run() {
+                asyncIdentify.complete(new FingerprintIdentifyResult(new FingerprintIdentifyFailInfo(false,
+                        FingerprintIdentifyFailInfo.ERROR_NOT_ENABLE, "fingerprint not enable")));
+            }
+        });
+        return asyncIdentify;
+    }
+
+    private void startIdentify(final BaseFingerprint.IdentifyListener listener, final Executor callbackExecutor,
+                               final int cipherMode, final byte[] cipherIV, final long timeoutMillis,
+                               final boolean isMultiResult, @Nullable final Runnable notEnableAction) {
+        if (enqueueUntilProbed(new Runnable() {
+            @Override
+            public void run() {
+                startIdentify(listener, callbackExecutor, cipherMode, cipherIV, timeoutMillis, isMultiResult,
+                        notEnableAction);
+            }
+        })) {
+            return;
+        }
+
         if (!isFingerprintEnable()) {
+            if (notEnableAction != null) {
+                notEnableAction.run();
+            }
+            return;
+        }
+
+        mFingerprint.setKeyRotationEnable(mIsKeyRotationEnable);
+
+        BaseFingerprint.IdentifyListener identifyListener = listener;
+        long graceWindowMillis = mGraceWindowMillis;
+        if (graceWindowMillis > 0) {
+            AuthGraceWindow graceWindow = AuthGraceWindow.get(mContext);
+            String fingerprintClassName = mFingerprint.getClass().getName();
+            AuthGraceWindow.Entry entry = graceWindow.find(fingerprintClassName,
+                    cipherMode, cipherIV, graceWindowMillis);
+            final Cipher cipher = entry != null ? createUnlockedDecryptCipher(cipherIV) : null;
+            if (cipher != null) {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            listener.onSucceed(cipher);
+                        } catch (Exception e) {
+                            onCatchException(e);
+                        }
+                    }
+                });
+                // the auditors see a success which skipped the sensor too
+                publishEvent(new FingerprintIdentifyEvent(FingerprintIdentifyEvent.TYPE_SUCCEED, fingerprintClassName));
+                return;
+            }
+            identifyListener = graceWindow.record(listener, fingerprintClassName, cipherMode, cipherIV);
+        }
+
+        mFingerprint.setCallbackExecutor(callbackExecutor);
+        mFingerprint.setUseSensorThread(mIsUseSensorThread);
+        mFingerprint.setEventPublisher(mEventPublisher);
+        // a future or a brokered session finishes with its first result, a resumed session would arm the
+        // sensor for nobody
+        mIsMultiResultSession = isMultiResult;
+        mFingerprint.setAutoResumeAfterLockout(isMultiResult && mIsAutoResumeAfterLockout);
+        mFingerprint.setContinuousMode(isMultiResult && mIsContinuousMode);
+        mFingerprint.startIdentify(this.mMaxAvailableTimes, cipherMode, cipherIV, identifyListener, timeoutMillis);
+    }
+
+    // for results decided here, without a backend session
+    private void publishEvent(FingerprintIdentifyEvent event) {
+        if (mEventPublisher.hasSubscribers()) {
+            mEventPublisher.publish(event);
+        }
+    }
+
+    // every requester of the window gets its own cipher, null if the key needs the sensor again
+    @Nullable
+    private Cipher createUnlockedDecryptCipher(byte[] cipherIV) {
+        try {
+            return mFingerprint.createUnlockedDecryptCipher(cipherIV);
+        } catch (Exception e) {
+            onCatchException(e);
+            return null;
+        }
+    }
+
+    // build the cipher of the current cipher mode in background, before the user asks to identify
+    public void prepare() {
+        if (enqueueUntilProbed(new Runnable() {
+            @Override
+            public void run() {
+                prepare();
+            }
+        })) {
+            return;
+        }
+
+        if (!isFingerprintEnable()) {
+            return;
+        }
+
+        final BaseFingerprint fingerprint = mFingerprint;
+        final int cipherMode = mCipherMode;
+        final byte[] cipherIV = mCipherIV;
+        fingerprint.setKeyRotationEnable(mIsKeyRotationEnable);
+        ExecutorUtils.getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                fingerprint.prepare(cipherMode, cipherIV);
+            }
+        });
+    }
+
+    // the handle is released once the backend freed the sensor, a following startIdentify waits for it
+    public CancelHandle cancelIdentify() {
+        mSessionBroker.clear(null);
+
+        Future<?> asyncIdentify = mAsyncIdentify;
+        mAsyncIdentify = null;
+        if (asyncIdentify != null) {
+            asyncIdentify.cancel(false);
+        }
+
+        synchronized (mPendingActions) {
+            mPendingActions.clear();
+        }
+
+        return mFingerprint == null ? CancelHandle.createReleased() : mFingerprint.cancelIdentify();
+    }
+
+    public void resumeIdentify() {
+        if (enqueueUntilProbed(new Runnable() {
+            @Override
+            public void run() {
+                resumeIdentify();
+            }
+        })) {
+            return;
+        }
+
+        if (!isFingerprintEnable() || LockoutTracker.isLockedOut()) {
             return;
         }
 
@@ -150,14 +737,114 @@ public class FingerprintIdentify {
 
     // GET & SET
     public boolean isFingerprintEnable() {
+        FingerprintCapability capability = getUnconfirmedCapability();
+        if (capability != null) {
+            return capability.fingerprintEnable;
+        }
         return mFingerprint != null && mFingerprint.isEnable();
     }
 
     public boolean isHardwareEnable() {
-        return isFingerprintEnable() || (mSubFingerprint != null && mSubFingerprint.isHardwareEnable());
+        FingerprintCapability capability = getUnconfirmedCapability();
+        if (capability != null) {
+            return capability.hardwareEnable;
+        }
+        return isProbedHardwareEnable();
     }
 
     public boolean isRegisteredFingerprint() {
-        return isFingerprintEnable() || (mSubFingerprint != null && mSubFingerprint.isRegisteredFingerprint());
+        FingerprintCapability capability = getUnconfirmedCapability();
+        if (capability != null) {
+            return capability.registeredFingerprint;
+        }
+        return isProbedRegisteredFingerprint();
+    }
+
+    private boolean isProbedHardwareEnable() {
+        return (mFingerprint != null && mFingerprint.isEnable())
+                || (mSubFingerprint != null && mSubFingerprint.isHardwareEnable());
+    }
+
+    private boolean isProbedRegisteredFingerprint() {
+        return (mFingerprint != null && mFingerprint.isEnable())
+                || (mSubFingerprint != null && mSubFingerprint.isRegisteredFingerprint());
+    }
+
+    public FingerprintCapability getCapability() {
+        FingerprintCapability capability = getUnconfirmedCapability();
+        return capability != null ? capability : getProbedCapability();
+    }
+
+    public List<String> getTimedOutProbes() {
+        return new ArrayList<>(mTimedOutProbes);
+    }
+
+    // a new identify replaces the listener of the running one, its future would never complete otherwise
+    private void abandonAsyncIdentify() {
+        Future<?> asyncIdentify = mAsyncIdentify;
+        mAsyncIdentify = null;
+        if (asyncIdentify != null) {
+            asyncIdentify.cancel(false);
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.N)
+    private class AsyncIdentify extends CompletableFuture<FingerprintIdentifyResult>
+            implements BaseFingerprint.IdentifyListener {
+
+        private final ProgressListener mProgressListener;
+
+        AsyncIdentify(ProgressListener progressListener) {
+            mProgressListener = progressListener;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            // cancelled by the caller, not by cancelIdentify() or a new identify
+            if (cancelled && mAsyncIdentify == this) {
+                cancelIdentify();
+            }
+            return cancelled;
+        }
+
+        @Override
+        public void onSucceed(Cipher cipher) {
+            release();
+            complete(new FingerprintIdentifyResult(cipher));
+        }
+
+        @Override
+        public void onNotMatch(int availableTimes) {
+            if (mProgressListener != null) {
+                mProgressListener.onNotMatch(availableTimes);
+            }
+        }
+
+        @Override
+        public void onFailed(FingerprintIdentifyFailInfo failInfo) {
+            release();
+            complete(new FingerprintIdentifyResult(failInfo));
+        }
+
+        @Override
+        public void onStartFailedByDeviceLocked() {
+            release();
+            complete(new FingerprintIdentifyResult(new FingerprintIdentifyFailInfo(true)));
+        }
+
+        private void release() {
+            if (mAsyncIdentify == this) {
+                mAsyncIdentify = null;
+            }
+        }
+    }
+
+    public interface ProgressListener {
+        void onNotMatch(int availableTimes);
+    }
+
+    public interface InitListener {
+        void onInitFinished(FingerprintIdentify fingerprintIdentify);
     }
 }
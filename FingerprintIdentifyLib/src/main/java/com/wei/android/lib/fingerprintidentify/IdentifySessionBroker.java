@@ -0,0 +1,337 @@
+package com.wei.android.lib.fingerprintidentify;
+
+import androidx.annotation.Nullable;
+
+import com.wei.android.lib.fingerprintidentify.base.BaseFingerprint;
+import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyFailInfo;
+import com.wei.android.lib.fingerprintidentify.util.ExecutorUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.crypto.Cipher;
+
+// shares one sensor session between the concurrent identify requests of the same cipher mode and IV,
+// requests of another cipher wait for the running session according to the queue policy.
+// An authenticated cipher is only ever handed to one request, the other waiters identify again
+public class IdentifySessionBroker {
+
+    public static final int POLICY_FIFO = 0;        // in the order of the requests
+    public static final int POLICY_PRIORITY = 1;    // higher priority first, in order on equal priority
+    public static final int POLICY_PREEMPT = 2;     // fail the running session and start the new request at once
+
+    private final FingerprintIdentify mFingerprintIdentify;
+
+    private final Object mLock = new Object();
+    private int mPolicy = POLICY_FIFO;                          // guarded by mLock
+    private Session mSession;                                   // guarded by mLock
+    private final List<Request> mQueue = new ArrayList<>();     // guarded by mLock
+
+    IdentifySessionBroker(FingerprintIdentify fingerprintIdentify) {
+        mFingerprintIdentify = fingerprintIdentify;
+    }
+
+    public void setPolicy(int policy) {
+        synchronized (mLock) {
+            mPolicy = policy;
+        }
+    }
+
+    Request request(BaseFingerprint.IdentifyListener listener, int cipherMode, byte[] cipherIV, int priority) {
+        Request request = new Request(listener, cipherMode, cipherIV, priority);
+        Session preempted = null;
+        Session started = null;
+        synchronized (mLock) {
+            if (mSession == null) {
+                mSession = started = new Session(request);
+            } else if (mSession.isCompatible(request)) {
+                mSession.mRequests.add(request);
+            } else if (mPolicy == POLICY_PREEMPT) {
+                preempted = mSession;
+                preempted.mIsFinished = true;
+                mSession = started = new Session(request);
+            } else {
+                enqueue(request);
+            }
+        }
+
+        if (preempted != null) {
+            mFingerprintIdentify.cancelBrokeredSession();
+            preempted.deliverFailed(createPreemptedFailInfo());
+        }
+        if (started != null) {
+            start(started);
+        }
+        return request;
+    }
+
+    // drop every request, fail them with the info or silently if it's null
+    void clear(@Nullable FingerprintIdentifyFailInfo failInfo) {
+        List<Request> requests = new ArrayList<>();
+        synchronized (mLock) {
+            if (mSession != null) {
+                mSession.mIsFinished = true;
+                requests.addAll(mSession.mRequests);
+                mSession = null;
+            }
+            requests.addAll(mQueue);
+            mQueue.clear();
+        }
+
+        for (Request request : requests) {
+            if (failInfo != null) {
+                request.deliverFailed(failInfo);
+            }
+            request.mIsCancelled = true;
+        }
+    }
+
+    private void enqueue(Request request) {
+        int index = mQueue.size();
+        if (mPolicy == POLICY_PRIORITY) {
+            while (index > 0 && mQueue.get(index - 1).mPriority < request.mPriority) {
+                index--;
+            }
+        }
+        mQueue.add(index, request);
+    }
+
+    private void start(final Session session) {
+        mFingerprintIdentify.startBrokeredSession(session, session.mCipherMode, session.mCipherIV, new Runnable() {
+            @Override
+            public void run() {
+                session.onFailed(new FingerprintIdentifyFailInfo(false,
+                        FingerprintIdentifyFailInfo.ERROR_NOT_ENABLE, "fingerprint not enable"));
+            }
+        });
+    }
+
+    // posted, the finished backend session still has to release the sensor before the next one arms it
+    private void scheduleNext() {
+        ExecutorUtils.getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                startNext();
+            }
+        });
+    }
+
+    private void startNext() {
+        Session session;
+        synchronized (mLock) {
+            if (mSession != null || mQueue.isEmpty()) {
+                return;
+            }
+
+            session = new Session(mQueue.remove(0));
+            Iterator<Request> iterator = mQueue.iterator();
+            while (iterator.hasNext()) {
+                Request request = iterator.next();
+                if (session.isCompatible(request)) {
+                    session.mRequests.add(request);
+                    iterator.remove();
+                }
+            }
+            mSession = session;
+        }
+        start(session);
+    }
+
+    static FingerprintIdentifyFailInfo createPreemptedFailInfo() {
+        return new FingerprintIdentifyFailInfo(false, FingerprintIdentifyFailInfo.ERROR_PREEMPTED,
+                "preempted by another identify");
+    }
+
+    private class Session implements BaseFingerprint.IdentifyListener {
+
+        final int mCipherMode;
+        final byte[] mCipherIV;
+        final List<Request> mRequests = new ArrayList<>();      // guarded by mLock
+        boolean mIsFinished = false;                            // guarded by mLock
+
+        Session(Request request) {
+            mCipherMode = request.mCipherMode;
+            mCipherIV = request.mCipherIV;
+            mRequests.add(request);
+        }
+
+        boolean isCompatible(Request request) {
+            return !mIsFinished && mCipherMode == request.mCipherMode && Arrays.equals(mCipherIV, request.mCipherIV);
+        }
+
+        // the waiters of a finished session, null if it was already finished
+        private List<Request> finish() {
+            synchronized (mLock) {
+                if (mIsFinished) {
+                    return null;
+                }
+                mIsFinished = true;
+                if (mSession == this) {
+                    mSession = null;
+                }
+                return new ArrayList<>(mRequests);
+            }
+        }
+
+        // guarded by mLock, the first waiter which is still there
+        private List<Request> requeueAllButFirst(List<Request> requests) {
+            List<Request> first = new ArrayList<>(1);
+            int index = 0;
+            for (Request request : requests) {
+                if (request.mIsCancelled) {
+                    continue;
+                }
+                if (first.isEmpty()) {
+                    first.add(request);
+                } else {
+                    mQueue.add(index++, request);
+                }
+            }
+            return first;
+        }
+
+        private List<Request> snapshot() {
+            synchronized (mLock) {
+                return mIsFinished ? null : new ArrayList<>(mRequests);
+            }
+        }
+
+        // a cipher is stateful and unlocked for one user, so only the first waiter gets it and the others
+        // go to the front of the queue for the next session. Without a cipher every waiter succeeds
+        @Override
+        public void onSucceed(@Nullable Cipher cipher) {
+            List<Request> requests;
+            synchronized (mLock) {
+                requests = finish();
+                if (requests == null) {
+                    return;
+                }
+                if (cipher != null) {
+                    requests = requeueAllButFirst(requests);
+                }
+            }
+
+            for (Request request : requests) {
+                if (!request.mIsCancelled) {
+                    try {
+                        request.mListener.onSucceed(cipher);
+                    } catch (Exception e) {
+                        mFingerprintIdentify.onCatchException(e);
+                    }
+                }
+            }
+            scheduleNext();
+        }
+
+        @Override
+        public void onNotMatch(int availableTimes) {
+            List<Request> requests = snapshot();
+            if (requests == null) {
+                return;
+            }
+
+            for (Request request : requests) {
+                if (!request.mIsCancelled) {
+                    try {
+                        request.mListener.onNotMatch(availableTimes);
+                    } catch (Exception e) {
+                        mFingerprintIdentify.onCatchException(e);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onFailed(FingerprintIdentifyFailInfo failInfo) {
+            if (finish() != null) {
+                deliverFailed(failInfo);
+                scheduleNext();
+            }
+        }
+
+        @Override
+        public void onStartFailedByDeviceLocked() {
+            List<Request> requests = finish();
+            if (requests == null) {
+                return;
+            }
+
+            for (Request request : requests) {
+                if (!request.mIsCancelled) {
+                    try {
+                        request.mListener.onStartFailedByDeviceLocked();
+                    } catch (Exception e) {
+                        mFingerprintIdentify.onCatchException(e);
+                    }
+                }
+            }
+            scheduleNext();
+        }
+
+        void deliverFailed(FingerprintIdentifyFailInfo failInfo) {
+            List<Request> requests;
+            synchronized (mLock) {
+                requests = new ArrayList<>(mRequests);
+            }
+            for (Request request : requests) {
+                request.deliverFailed(failInfo);
+            }
+        }
+    }
+
+    public class Request {
+
+        final BaseFingerprint.IdentifyListener mListener;
+        final int mCipherMode;
+        final byte[] mCipherIV;
+        final int mPriority;
+        volatile boolean mIsCancelled = false;
+
+        Request(BaseFingerprint.IdentifyListener listener, int cipherMode, byte[] cipherIV, int priority) {
+            mListener = listener;
+            mCipherMode = cipherMode;
+            mCipherIV = cipherIV;
+            mPriority = priority;
+        }
+
+        // leave the queue or the shared session, the sensor is only released with the last waiter
+        public void cancel() {
+            Session released = null;
+            synchronized (mLock) {
+                if (mIsCancelled) {
+                    return;
+                }
+                mIsCancelled = true;
+
+                if (!mQueue.remove(this) && mSession != null && mSession.mRequests.remove(this)
+                        && mSession.mRequests.isEmpty()) {
+                    released = mSession;
+                    released.mIsFinished = true;
+                    mSession = null;
+                }
+            }
+
+            if (released != null) {
+                mFingerprintIdentify.cancelBrokeredSession();
+                scheduleNext();
+            }
+        }
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        void deliverFailed(FingerprintIdentifyFailInfo failInfo) {
+            if (mIsCancelled) {
+                return;
+            }
+            try {
+                mListener.onFailed(failInfo);
+            } catch (Exception e) {
+                mFingerprintIdentify.onCatchException(e);
+            }
+        }
+    }
+}
@@ -30,34 +30,46 @@ import androidx.core.os.CancellationSignal;
 
 public final class FingerprintManagerCompat {
 
-    private Context mContext;
+    private static volatile FingerprintManagerCompat sInstance;
 
+    private final Context mContext;
+
+    // one instance per application context
     public static FingerprintManagerCompat from(Context context) {
-        return new FingerprintManagerCompat(context);
+        Context applicationContext = context.getApplicationContext();
+        if (applicationContext == null) {
+            applicationContext = context;
+        }
+
+        FingerprintManagerCompat instance = sInstance;
+        if (instance == null || instance.mContext != applicationContext) {
+            instance = new FingerprintManagerCompat(applicationContext);
+            sInstance = instance;
+        }
+        return instance;
     }
 
     private FingerprintManagerCompat(Context context) {
         mContext = context;
     }
 
-    private static final FingerprintManagerCompatImpl IMPL;
-
-    static {
-        IMPL = new Api23FingerprintManagerCompatImpl();
+    // initialized on first use rather than when the class is loaded
+    private static class ImplHolder {
+        static final FingerprintManagerCompatImpl IMPL = new Api23FingerprintManagerCompatImpl();
     }
 
     public boolean hasEnrolledFingerprints() {
-        return IMPL.hasEnrolledFingerprints(mContext);
+        return ImplHolder.IMPL.hasEnrolledFingerprints(mContext);
     }
 
     public boolean isHardwareDetected() {
-        return IMPL.isHardwareDetected(mContext);
+        return ImplHolder.IMPL.isHardwareDetected(mContext);
     }
 
     public void authenticate(@Nullable CryptoObject crypto, int flags,
                              @Nullable CancellationSignal cancel, @NonNull AuthenticationCallback callback,
                              @Nullable Handler handler) {
-        IMPL.authenticate(mContext, crypto, flags, cancel, callback, handler);
+        ImplHolder.IMPL.authenticate(mContext, crypto, flags, cancel, callback, handler);
     }
 
     public static class CryptoObject {
@@ -66,6 +78,8 @@ public final class FingerprintManagerCompat {
         private final Cipher mCipher;
         private final Mac mMac;
 
+        Object mPlatformCryptoObject;   // FingerprintManager.CryptoObject, created once on the first authenticate
+
         public CryptoObject(Signature signature) {
             mSignature = signature;
             mCipher = null;
@@ -98,8 +112,9 @@ public final class FingerprintManagerCompat {
         }
     }
 
+    // reused by the platform callback adapter, don't keep it after the callback returns
     public static final class AuthenticationResult {
-        private CryptoObject mCryptoObject;
+        CryptoObject mCryptoObject;
 
         public AuthenticationResult(CryptoObject crypto) {
             mCryptoObject = crypto;
@@ -112,6 +127,8 @@ public final class FingerprintManagerCompat {
 
     public static abstract class AuthenticationCallback {
 
+        Object mPlatformCallback;   // FingerprintManager.AuthenticationCallback adapter, reused across re-arms
+
         public void onAuthenticationError(int errMsgId, CharSequence errString) {
         }
 
@@ -151,60 +168,8 @@ public final class FingerprintManagerCompat {
         @Override
         public void authenticate(Context context, CryptoObject crypto, int flags, CancellationSignal cancel,
                                  AuthenticationCallback callback, Handler handler) {
-            FingerprintManagerCompatApi23.authenticate(context, wrapCryptoObject(crypto), flags,
-                    cancel != null ? cancel.getCancellationSignalObject() : null, wrapCallback(callback), handler);
-        }
-
-        private static FingerprintManagerCompatApi23.CryptoObject wrapCryptoObject(CryptoObject cryptoObject) {
-            if (cryptoObject == null) {
-                return null;
-            } else if (cryptoObject.getCipher() != null) {
-                return new FingerprintManagerCompatApi23.CryptoObject(cryptoObject.getCipher());
-            } else if (cryptoObject.getSignature() != null) {
-                return new FingerprintManagerCompatApi23.CryptoObject(cryptoObject.getSignature());
-            } else if (cryptoObject.getMac() != null) {
-                return new FingerprintManagerCompatApi23.CryptoObject(cryptoObject.getMac());
-            } else {
-                return null;
-            }
-        }
-
-        static CryptoObject unwrapCryptoObject(FingerprintManagerCompatApi23.CryptoObject cryptoObject) {
-            if (cryptoObject == null) {
-                return null;
-            } else if (cryptoObject.getCipher() != null) {
-                return new CryptoObject(cryptoObject.getCipher());
-            } else if (cryptoObject.getSignature() != null) {
-                return new CryptoObject(cryptoObject.getSignature());
-            } else if (cryptoObject.getMac() != null) {
-                return new CryptoObject(cryptoObject.getMac());
-            } else {
-                return null;
-            }
-        }
-
-        private static FingerprintManagerCompatApi23.AuthenticationCallback wrapCallback(final AuthenticationCallback callback) {
-            return new FingerprintManagerCompatApi23.AuthenticationCallback() {
-                @Override
-                public void onAuthenticationError(int errMsgId, CharSequence errString) {
-                    callback.onAuthenticationError(errMsgId, errString);
-                }
-
-                @Override
-                public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
-                    callback.onAuthenticationHelp(helpMsgId, helpString);
-                }
-
-                @Override
-                public void onAuthenticationSucceeded(FingerprintManagerCompatApi23.AuthenticationResultInternal result) {
-                    callback.onAuthenticationSucceeded(new AuthenticationResult(unwrapCryptoObject(result.getCryptoObject())));
-                }
-
-                @Override
-                public void onAuthenticationFailed() {
-                    callback.onAuthenticationFailed();
-                }
-            };
+            FingerprintManagerCompatApi23.authenticate(context, crypto, flags,
+                    cancel != null ? cancel.getCancellationSignalObject() : null, callback, handler);
         }
     }
 }
@@ -22,11 +22,6 @@ import android.hardware.fingerprint.FingerprintManager;
 import android.os.CancellationSignal;
 import android.os.Handler;
 
-import java.security.Signature;
-
-import javax.crypto.Cipher;
-import javax.crypto.Mac;
-
 import androidx.annotation.RequiresApi;
 import androidx.annotation.RestrictTo;
 
@@ -37,8 +32,32 @@ import static androidx.annotation.RestrictTo.Scope.LIBRARY_GROUP;
 @RestrictTo(LIBRARY_GROUP)
 public final class FingerprintManagerCompatApi23 {
 
+    private static volatile ManagerHolder sManagerHolder;
+
+    // resolved once per application context
     private static FingerprintManager getFingerprintManagerOrNull(Context context) {
-        return (FingerprintManager) context.getSystemService(Context.FINGERPRINT_SERVICE);
+        Context applicationContext = context.getApplicationContext();
+        if (applicationContext == null) {
+            applicationContext = context;
+        }
+
+        ManagerHolder holder = sManagerHolder;
+        if (holder == null || holder.mContext != applicationContext) {
+            holder = new ManagerHolder(applicationContext,
+                    (FingerprintManager) applicationContext.getSystemService(Context.FINGERPRINT_SERVICE));
+            sManagerHolder = holder;
+        }
+        return holder.mFingerprintManager;
+    }
+
+    private static final class ManagerHolder {
+        final Context mContext;
+        final FingerprintManager mFingerprintManager;
+
+        ManagerHolder(Context context, FingerprintManager fingerprintManager) {
+            mContext = context;
+            mFingerprintManager = fingerprintManager;
+        }
     }
 
     public static boolean hasEnrolledFingerprints(Context context) {
@@ -51,126 +70,96 @@ public final class FingerprintManagerCompatApi23 {
         return (fp != null) && fp.isHardwareDetected();
     }
 
-    public static void authenticate(Context context, CryptoObject crypto, int flags, Object cancel, AuthenticationCallback callback, Handler handler) {
+    public static void authenticate(Context context, FingerprintManagerCompat.CryptoObject crypto, int flags, Object cancel,
+                                    FingerprintManagerCompat.AuthenticationCallback callback, Handler handler) {
         final FingerprintManager fp = getFingerprintManagerOrNull(context);
         if (fp != null) {
-            fp.authenticate(wrapCryptoObject(crypto), (CancellationSignal) cancel, flags, wrapCallback(callback), handler);
+            CallbackAdapter adapter = getCallbackAdapter(callback);
+            adapter.mCryptoObject = crypto;
+            fp.authenticate(toPlatformCryptoObject(crypto), (CancellationSignal) cancel, flags, adapter, handler);
         }
     }
 
-    private static FingerprintManager.CryptoObject wrapCryptoObject(CryptoObject cryptoObject) {
+    // the platform object is created once and kept on the compat object, so it can be mapped back on success
+    private static FingerprintManager.CryptoObject toPlatformCryptoObject(FingerprintManagerCompat.CryptoObject cryptoObject) {
         if (cryptoObject == null) {
             return null;
-        } else if (cryptoObject.getCipher() != null) {
-            return new FingerprintManager.CryptoObject(cryptoObject.getCipher());
-        } else if (cryptoObject.getSignature() != null) {
-            return new FingerprintManager.CryptoObject(cryptoObject.getSignature());
-        } else if (cryptoObject.getMac() != null) {
-            return new FingerprintManager.CryptoObject(cryptoObject.getMac());
-        } else {
-            return null;
         }
+
+        FingerprintManager.CryptoObject platformCryptoObject = (FingerprintManager.CryptoObject) cryptoObject.mPlatformCryptoObject;
+        if (platformCryptoObject == null) {
+            if (cryptoObject.getCipher() != null) {
+                platformCryptoObject = new FingerprintManager.CryptoObject(cryptoObject.getCipher());
+            } else if (cryptoObject.getSignature() != null) {
+                platformCryptoObject = new FingerprintManager.CryptoObject(cryptoObject.getSignature());
+            } else if (cryptoObject.getMac() != null) {
+                platformCryptoObject = new FingerprintManager.CryptoObject(cryptoObject.getMac());
+            }
+            cryptoObject.mPlatformCryptoObject = platformCryptoObject;
+        }
+        return platformCryptoObject;
     }
 
-    private static CryptoObject unwrapCryptoObject(FingerprintManager.CryptoObject cryptoObject) {
+    private static FingerprintManagerCompat.CryptoObject fromPlatformCryptoObject(FingerprintManager.CryptoObject cryptoObject) {
         if (cryptoObject == null) {
             return null;
         } else if (cryptoObject.getCipher() != null) {
-            return new CryptoObject(cryptoObject.getCipher());
+            return new FingerprintManagerCompat.CryptoObject(cryptoObject.getCipher());
         } else if (cryptoObject.getSignature() != null) {
-            return new CryptoObject(cryptoObject.getSignature());
+            return new FingerprintManagerCompat.CryptoObject(cryptoObject.getSignature());
         } else if (cryptoObject.getMac() != null) {
-            return new CryptoObject(cryptoObject.getMac());
+            return new FingerprintManagerCompat.CryptoObject(cryptoObject.getMac());
         } else {
             return null;
         }
     }
 
-    private static FingerprintManager.AuthenticationCallback wrapCallback(final AuthenticationCallback callback) {
-        return new FingerprintManager.AuthenticationCallback() {
-            @Override
-            public void onAuthenticationError(int errMsgId, CharSequence errString) {
-                callback.onAuthenticationError(errMsgId, errString);
-            }
-
-            @Override
-            public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
-                callback.onAuthenticationHelp(helpMsgId, helpString);
-            }
-
-            @Override
-            public void onAuthenticationSucceeded(FingerprintManager.AuthenticationResult result) {
-                callback.onAuthenticationSucceeded(new AuthenticationResultInternal(unwrapCryptoObject(result.getCryptoObject())));
-            }
-
-            @Override
-            public void onAuthenticationFailed() {
-                callback.onAuthenticationFailed();
-            }
-        };
-    }
-
-    public static class CryptoObject {
-
-        private final Signature mSignature;
-        private final Cipher mCipher;
-        private final Mac mMac;
-
-        public CryptoObject(Signature signature) {
-            mSignature = signature;
-            mCipher = null;
-            mMac = null;
-        }
-
-        public CryptoObject(Cipher cipher) {
-            mCipher = cipher;
-            mSignature = null;
-            mMac = null;
-        }
-
-        public CryptoObject(Mac mac) {
-            mMac = mac;
-            mCipher = null;
-            mSignature = null;
-        }
-
-        public Signature getSignature() {
-            return mSignature;
-        }
-
-        public Cipher getCipher() {
-            return mCipher;
-        }
-
-        public Mac getMac() {
-            return mMac;
+    // one adapter per compat callback, reused across re-arms
+    private static CallbackAdapter getCallbackAdapter(FingerprintManagerCompat.AuthenticationCallback callback) {
+        CallbackAdapter adapter = (CallbackAdapter) callback.mPlatformCallback;
+        if (adapter == null) {
+            adapter = new CallbackAdapter(callback);
+            callback.mPlatformCallback = adapter;
         }
+        return adapter;
     }
 
-    public static final class AuthenticationResultInternal {
-        private CryptoObject mCryptoObject;
+    private static final class CallbackAdapter extends FingerprintManager.AuthenticationCallback {
 
-        public AuthenticationResultInternal(CryptoObject crypto) {
-            mCryptoObject = crypto;
-        }
+        private final FingerprintManagerCompat.AuthenticationCallback mCallback;
+        private final FingerprintManagerCompat.AuthenticationResult mResult = new FingerprintManagerCompat.AuthenticationResult(null);
+        private volatile FingerprintManagerCompat.CryptoObject mCryptoObject;    // passed to the last authenticate
 
-        public CryptoObject getCryptoObject() {
-            return mCryptoObject;
+        CallbackAdapter(FingerprintManagerCompat.AuthenticationCallback callback) {
+            mCallback = callback;
         }
-    }
-
-    public static abstract class AuthenticationCallback {
 
+        @Override
         public void onAuthenticationError(int errMsgId, CharSequence errString) {
+            mCallback.onAuthenticationError(errMsgId, errString);
         }
 
+        @Override
         public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
+            mCallback.onAuthenticationHelp(helpMsgId, helpString);
         }
 
-        public void onAuthenticationSucceeded(AuthenticationResultInternal result) {
+        @Override
+        public void onAuthenticationSucceeded(FingerprintManager.AuthenticationResult result) {
+            FingerprintManager.CryptoObject platformCryptoObject = result.getCryptoObject();
+            FingerprintManagerCompat.CryptoObject cryptoObject = mCryptoObject;
+            if (platformCryptoObject == null) {
+                cryptoObject = null;
+            } else if (cryptoObject == null || cryptoObject.mPlatformCryptoObject != platformCryptoObject) {
+                cryptoObject = fromPlatformCryptoObject(platformCryptoObject);
+            }
+            mResult.mCryptoObject = cryptoObject;
+            mCallback.onAuthenticationSucceeded(mResult);
         }
 
+        @Override
         public void onAuthenticationFailed() {
+            mCallback.onAuthenticationFailed();
         }
     }
 }
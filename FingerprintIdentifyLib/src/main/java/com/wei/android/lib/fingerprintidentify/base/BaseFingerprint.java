@@ -1,13 +1,29 @@
 package com.wei.android.lib.fingerprintidentify.base;
 
 import android.content.Context;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
 import android.os.Handler;
-import android.os.Looper;
+import android.os.SystemClock;
+import android.security.keystore.UserNotAuthenticatedException;
 
 import androidx.annotation.Nullable;
 
+import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyEvent;
 import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyFailInfo;
+import com.wei.android.lib.fingerprintidentify.util.CryptoObjectFactory;
 import com.wei.android.lib.fingerprintidentify.util.CryptoObjectHelper;
+import com.wei.android.lib.fingerprintidentify.util.ExecutorUtils;
+import com.wei.android.lib.fingerprintidentify.util.FingerprintMetrics;
+import com.wei.android.lib.fingerprintidentify.util.LockoutTracker;
+
+import java.security.Key;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Cipher;
 
@@ -36,56 +52,199 @@ import javax.crypto.Cipher;
  */
 public abstract class BaseFingerprint {
 
+    // identify lifecycle: idle -> arming -> listening -> succeeded / failed / cancelled
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_ARMING = 1;
+    public static final int STATE_LISTENING = 2;
+    public static final int STATE_SUCCEEDED = 3;
+    public static final int STATE_FAILED = 4;
+    public static final int STATE_CANCELLED = 5;
+
     protected Context mContext;
 
-    private Handler mHandler;
-    private IdentifyListener mIdentifyListener;
+    private volatile IdentifyListener mIdentifyListener;
     private ExceptionListener mExceptionListener;
 
-    private int mNumberOfFailures = 0;                      // number of failures
-    private int mMaxAvailableTimes = 3;                     // the most available times
+    private final AtomicInteger mState = new AtomicInteger(STATE_IDLE);
+    private final AtomicInteger mNumberOfFailures = new AtomicInteger();    // number of failures
+    private volatile int mMaxAvailableTimes = 3;            // the most available times
 
     private boolean mIsHardwareEnable = false;              // if the phone equipped fingerprint hardware
     private boolean mIsRegisteredFingerprint = false;       // if the phone has any fingerprints
 
-    private boolean mIsCalledStartIdentify = false;         // if started identify
-    private boolean mIsCanceledIdentify = false;            // if canceled identify
-
     protected int mCipherMode = Cipher.ENCRYPT_MODE;
 
     protected byte[] mCipherIV = null;
 
+    private volatile boolean mIsKeyRotationEnable = false;  // if encrypt with the pre-generated key
+    private volatile String mEncryptKeyAlias;               // the key of the running encryption
+    private volatile PreparedCipher mPreparedCipher;        // built by prepare() ahead of startIdentify
+    private volatile boolean mIsPreparedCipherInUse = false;    // the running crypto object came from prepare()
+    private volatile boolean mIsKeyLocked = false;          // the time-bound key refused the cipher before authentication
+
+    private volatile Executor mCallbackExecutor = ExecutorUtils.mainThread();   // where the listener is called
+    private volatile boolean mIsUseSensorThread = false;    // if the backend callbacks run on the sensor thread
+
+    private static final int EVENT_SUCCEED = 1;
+    private static final int EVENT_NOT_MATCH = 2;
+    private static final int EVENT_FAILED = 3;
+    private static final int EVENT_START_FAILED_BY_DEVICE_LOCKED = 4;
+
+    private final EventDispatch mEventDispatch = new EventDispatch(true);
+
+    private volatile IdentifyEventPublisher mEventPublisher;   // observers of the session besides the listener
+
+    private volatile boolean mIsAutoResumeAfterLockout = false;    // if start again when the lockout expired
+    private final AtomicInteger mLockoutResumeToken = new AtomicInteger();  // bumped to drop a scheduled resume
+
+    private volatile long mDeadline = 0;                    // elapsedRealtime to give up at, 0 if no timeout
+    private volatile ScheduledFuture<?> mTimeoutFuture;
+    private final AtomicInteger mTimeoutToken = new AtomicInteger();        // bumped to drop a scheduled timeout
+
+    private volatile boolean mIsContinuousMode = false;     // if arm again after every result, for shared terminals
+    private final AtomicInteger mContinuousToken = new AtomicInteger();     // bumped to drop a scheduled re-arm
+
+    private static final FingerprintIdentifyFailInfo LOCKED_OUT = new FingerprintIdentifyFailInfo(true,
+            FingerprintIdentifyFailInfo.ERROR_LOCKED_OUT, "locked out");
+
+    private static final long CANCEL_RELEASE_TIMEOUT_MILLIS = 1000;     // release anyway if the backend is silent
+    private volatile CancelHandle mPendingCancel;           // the cancel waiting for the backend to free the sensor
+    private final AtomicInteger mDeferredStartToken = new AtomicInteger();  // bumped to drop a start behind a cancel
+
     public BaseFingerprint(Context context, ExceptionListener exceptionListener) {
         mContext = context;
         mExceptionListener = exceptionListener;
-        mHandler = new Handler(Looper.getMainLooper());
     }
 
     // DO
     public void startIdentify(int maxAvailableTimes,
                               int cipherMode, byte[] cipherIV,
                               IdentifyListener identifyListener) {
+        startIdentify(maxAvailableTimes, cipherMode, cipherIV, identifyListener, 0);
+    }
+
+    // fail with ERROR_TIMEOUT if nothing finished the identify within the timeout, 0 for no timeout
+    public void startIdentify(final int maxAvailableTimes,
+                              final int cipherMode, final byte[] cipherIV,
+                              final IdentifyListener identifyListener, final long timeoutMillis) {
+        mLockoutResumeToken.incrementAndGet();
+        mContinuousToken.incrementAndGet();
+
+        // starting before the backend released the sensor would fail busy, or be hit by the late cancel error
+        CancelHandle pendingCancel = mPendingCancel;
+        if (pendingCancel != null && !pendingCancel.isReleased()) {
+            final int token = mDeferredStartToken.incrementAndGet();
+            pendingCancel.whenReleased(ExecutorUtils.mainThread(), new Runnable() {
+                @Override
+                public void run() {
+                    if (mDeferredStartToken.get() == token) {
+                        startIdentify(maxAvailableTimes, cipherMode, cipherIV, identifyListener, timeoutMillis);
+                    }
+                }
+            });
+            return;
+        }
+
         mMaxAvailableTimes = maxAvailableTimes;
         mIdentifyListener = identifyListener;
-        mIsCalledStartIdentify = true;
-        mIsCanceledIdentify = false;
-        mNumberOfFailures = 0;
+        mNumberOfFailures.set(0);
         mCipherMode = cipherMode;
         mCipherIV = cipherIV;
+        mDeadline = timeoutMillis > 0 ? SystemClock.elapsedRealtime() + timeoutMillis : 0;
+
+        // still locked out by an earlier session, report it like a start rejected by the sensor, without arming
+        if (LockoutTracker.isLockedOut()) {
+            mState.set(STATE_FAILED);
+            deliverFailed(LOCKED_OUT, true);
+            if (mIsAutoResumeAfterLockout) {
+                scheduleLockoutResume();
+            }
+            return;
+        }
+
+        mState.set(STATE_ARMING);
+        scheduleTimeout();
 
         doIdentify();
+        finishArming();
     }
 
     public void resumeIdentify() {
-        if (mIsCalledStartIdentify && mIdentifyListener != null && mNumberOfFailures < mMaxAvailableTimes) {
-            mIsCanceledIdentify = false;
+        if (mIdentifyListener == null || mNumberOfFailures.get() >= mMaxAvailableTimes) {
+            return;
+        }
+
+        CancelHandle pendingCancel = mPendingCancel;
+        if (pendingCancel != null && !pendingCancel.isReleased()) {
+            final int token = mDeferredStartToken.incrementAndGet();
+            pendingCancel.whenReleased(ExecutorUtils.mainThread(), new Runnable() {
+                @Override
+                public void run() {
+                    if (mDeferredStartToken.get() == token) {
+                        resumeIdentify();
+                    }
+                }
+            });
+            return;
+        }
+
+        // the deadline still counts from the start
+        if (mState.compareAndSet(STATE_CANCELLED, STATE_ARMING)) {
+            scheduleTimeout();
             doIdentify();
+            finishArming();
+        }
+    }
+
+    public CancelHandle cancelIdentify() {
+        mLockoutResumeToken.incrementAndGet();
+        mContinuousToken.incrementAndGet();
+        mDeferredStartToken.incrementAndGet();
+        cancelTimeout();
+
+        int state;
+        do {
+            state = mState.get();
+        } while (isActive(state) && !mState.compareAndSet(state, STATE_CANCELLED));
+
+        // idle or finished, the result or finishArming() already stopped the backend, and Spass e.g. throws on
+        // a cancel without an identify
+        if (!isActive(state)) {
+            CancelHandle pendingCancel = mPendingCancel;
+            return pendingCancel != null ? pendingCancel : CancelHandle.createReleased();
         }
+
+        CancelHandle cancelHandle = cancelBackend();
+        publish(FingerprintIdentifyEvent.TYPE_CANCELLED);
+
+        if (cancelHandle == null) {
+            cancelHandle = new CancelHandle();
+            releaseCancel(cancelHandle, true);
+        }
+        return cancelHandle;
     }
 
-    public void cancelIdentify() {
-        mIsCanceledIdentify = true;
+    // every stop of the backend, so the next start waits for the late cancel error of the stopped session.
+    // null if the backend freed the sensor synchronously
+    @Nullable
+    private CancelHandle cancelBackend() {
+        if (!isCancelConfirmedByBackend()) {
+            doCancelIdentify();
+            return null;
+        }
+
+        // the backend confirms the one cancel it is still stopping, don't strand its handle
+        CancelHandle pendingCancel = mPendingCancel;
+        if (pendingCancel != null && !pendingCancel.isReleased()) {
+            doCancelIdentify();
+            return pendingCancel;
+        }
+
+        CancelHandle cancelHandle = new CancelHandle();
+        mPendingCancel = cancelHandle;
+        scheduleCancelReleaseTimeout(cancelHandle);
         doCancelIdentify();
+        return cancelHandle;
     }
 
     // IMPL
@@ -93,87 +252,402 @@ public abstract class BaseFingerprint {
 
     protected abstract void doCancelIdentify();
 
+    // true if the backend calls onCancelReleased(), false if doCancelIdentify() frees the sensor synchronously
+    // or the backend session already ended by itself, e.g. with a result
+    protected boolean isCancelConfirmedByBackend() {
+        return false;
+    }
+
+    // the backend freed the sensor after doCancelIdentify(), false if no cancel was waiting for it
+    protected boolean onCancelReleased() {
+        CancelHandle cancelHandle = mPendingCancel;
+        if (cancelHandle == null) {
+            return false;
+        }
+        releaseCancel(cancelHandle, true);
+        return true;
+    }
+
+    private void scheduleCancelReleaseTimeout(final CancelHandle cancelHandle) {
+        ExecutorUtils.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                releaseCancel(cancelHandle, false);
+            }
+        }, CANCEL_RELEASE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void releaseCancel(CancelHandle cancelHandle, boolean confirmed) {
+        if (mPendingCancel == cancelHandle) {
+            mPendingCancel = null;
+        }
+        if (cancelHandle.release(confirmed)) {
+            FingerprintMetrics.onCancelReleased(SystemClock.elapsedRealtime() - cancelHandle.getCancelledAt(), confirmed);
+        }
+    }
+
     // CALLBACK
-    protected void onSucceed(@Nullable Cipher cipher) {
-        if (mIsCanceledIdentify) {
+    protected void onSucceed(@Nullable final Cipher cipher) {
+        if (!moveToTerminalState(STATE_SUCCEEDED)) {
             return;
         }
 
-        mNumberOfFailures = mMaxAvailableTimes;
+        LockoutTracker.clear();
 
-        if (mIdentifyListener != null) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        mIdentifyListener.onSucceed(cipher);
-                    } catch (Exception e) {
-                        onCatchException(e);
-                    }
-                }
-            });
+        if (mIsKeyRotationEnable && mCipherMode == Cipher.ENCRYPT_MODE && cipher != null && mEncryptKeyAlias != null) {
+            try {
+                CryptoObjectHelper.getInstance().commitStagedKey(mContext, mEncryptKeyAlias);
+            } catch (Exception e) {
+                onCatchException(e);
+            }
         }
 
-        cancelIdentify();
+        mNumberOfFailures.set(mMaxAvailableTimes);
+
+        IdentifyListener identifyListener = mIdentifyListener;
+        if (identifyListener != null) {
+            EventDispatch eventDispatch = obtainEventDispatch(identifyListener, EVENT_SUCCEED);
+            eventDispatch.mCipher = cipher;
+            dispatch(eventDispatch);
+        }
+
+        publish(FingerprintIdentifyEvent.TYPE_SUCCEED);
+
+        cancelBackend();
+
+        if (mIsContinuousMode) {
+            FingerprintMetrics.onContinuousResult(true);
+            scheduleContinuousRearm();
+        }
     }
 
     protected void onNotMatch() {
-        if (mIsCanceledIdentify) {
+        if (!isActive(mState.get())) {
+            return;
+        }
+
+        int numberOfFailures = mNumberOfFailures.incrementAndGet();
+        if (numberOfFailures < mMaxAvailableTimes) {
+            IdentifyListener identifyListener = mIdentifyListener;
+            if (identifyListener != null) {
+                EventDispatch eventDispatch = obtainEventDispatch(identifyListener, EVENT_NOT_MATCH);
+                eventDispatch.mChancesLeft = mMaxAvailableTimes - numberOfFailures;
+                dispatch(eventDispatch);
+            }
+
+            if (hasEventSubscribers()) {
+                FingerprintIdentifyEvent event = createEvent(FingerprintIdentifyEvent.TYPE_NOT_MATCH);
+                event.availableTimes = mMaxAvailableTimes - numberOfFailures;
+                mEventPublisher.publish(event);
+            }
+
+            if (needToCallDoIdentifyAgainAfterNotMatch() && isActive(mState.get())) {
+                doIdentify();
+            }
+
+            return;
+        }
+
+        onFailed(FingerprintIdentifyFailInfo.NOT_MATCH);
+    }
+
+    protected void onFailed(FingerprintIdentifyFailInfo failInfo) {
+        // read before the transition, the first start is the one without any failure
+        boolean isStartFailedByDeviceLocked = failInfo.deviceLocked && mNumberOfFailures.get() == 0;
+
+        if (!moveToTerminalState(STATE_FAILED)) {
+            return;
+        }
+
+        if (failInfo.errorCode == FingerprintManager.FINGERPRINT_ERROR_LOCKOUT) {
+            // a lockout reported at the start began earlier, only one hit within the session has a known end
+            if (!isStartFailedByDeviceLocked) {
+                LockoutTracker.onLockout();
+            }
+            if (mIsAutoResumeAfterLockout) {
+                scheduleLockoutResume();
+            }
+        }
+
+        deliverFailed(failInfo, isStartFailedByDeviceLocked);
+        cancelBackend();
+
+        // the next user may try, other errors stop the loop
+        if (mIsContinuousMode && failInfo.errorCode == FingerprintIdentifyFailInfo.ERROR_NOT_MATCH) {
+            FingerprintMetrics.onContinuousResult(false);
+            scheduleContinuousRearm();
+        }
+    }
+
+    private void deliverFailed(FingerprintIdentifyFailInfo failInfo, boolean isStartFailedByDeviceLocked) {
+        mNumberOfFailures.set(mMaxAvailableTimes);
+
+        IdentifyListener identifyListener = mIdentifyListener;
+        if (identifyListener != null) {
+            EventDispatch eventDispatch = obtainEventDispatch(identifyListener,
+                    isStartFailedByDeviceLocked ? EVENT_START_FAILED_BY_DEVICE_LOCKED : EVENT_FAILED);
+            eventDispatch.mFailInfo = failInfo;
+            dispatch(eventDispatch);
+        }
+
+        if (hasEventSubscribers()) {
+            FingerprintIdentifyEvent event = createEvent(FingerprintIdentifyEvent.TYPE_FAILED);
+            event.failInfo = failInfo;
+            mEventPublisher.publish(event);
+        }
+    }
+
+    // recoverable hint of the sensor, only delivered to the event subscribers
+    protected void onHelp(int helpCode, CharSequence helpString) {
+        if (!isActive(mState.get()) || !hasEventSubscribers()) {
             return;
         }
 
-        if (++mNumberOfFailures < mMaxAvailableTimes) {
-            if (mIdentifyListener != null) {
-                final int chancesLeft = mMaxAvailableTimes - mNumberOfFailures;
+        FingerprintIdentifyEvent event = createEvent(FingerprintIdentifyEvent.TYPE_HELP);
+        event.helpCode = helpCode;
+        event.helpString = helpString == null ? null : helpString.toString();
+        mEventPublisher.publish(event);
+    }
+
+    // start the same identify again once the sensor is usable, unless another start or a cancel came first.
+    // a lockout reported at the start has no known end, it's over within the full lockout period
+    private void scheduleLockoutResume() {
+        final int token = mLockoutResumeToken.incrementAndGet();
+        final IdentifyListener identifyListener = mIdentifyListener;
+        final int maxAvailableTimes = mMaxAvailableTimes;
+        final int cipherMode = mCipherMode;
+        final byte[] cipherIV = mCipherIV;
+        ExecutorUtils.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
-                        try {
-                            mIdentifyListener.onNotMatch(chancesLeft);
-                        } catch (Exception e) {
-                            onCatchException(e);
+                        if (mLockoutResumeToken.get() == token && mState.get() == STATE_FAILED) {
+                            startIdentify(maxAvailableTimes, cipherMode, cipherIV, identifyListener);
                         }
                     }
                 });
             }
+        }, LockoutTracker.isLockedOut() ? LockoutTracker.getRemainingMillis() : LockoutTracker.LOCKOUT_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
 
-            if (needToCallDoIdentifyAgainAfterNotMatch()) {
-                doIdentify();
+    // build the next cipher once the listener handled the result, then arm for the next user.
+    // queued behind the result on the callback executor, the next encryption may replace the key in use
+    private void scheduleContinuousRearm() {
+        final int token = mContinuousToken.incrementAndGet();
+        final long resultAt = SystemClock.elapsedRealtime();
+        final int cipherMode = mCipherMode;
+        final byte[] cipherIV = mCipherIV;
+        final Runnable prepareNext = new Runnable() {
+            @Override
+            public void run() {
+                prepareCipher(cipherMode, cipherIV);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mContinuousToken.get() == token && mIsContinuousMode) {
+                            rearm(resultAt, token);
+                        }
+                    }
+                });
+            }
+        };
+        dispatch(new Runnable() {
+            @Override
+            public void run() {
+                if (mContinuousToken.get() == token) {
+                    ExecutorUtils.getBackgroundExecutor().execute(prepareNext);
+                }
             }
+        });
+    }
 
+    private void rearm(final long resultAt, final int token) {
+        // the backend is still stopping the last session, its cancel error would fail the re-armed one
+        CancelHandle pendingCancel = mPendingCancel;
+        if (pendingCancel != null && !pendingCancel.isReleased()) {
+            pendingCancel.whenReleased(ExecutorUtils.mainThread(), new Runnable() {
+                @Override
+                public void run() {
+                    if (mContinuousToken.get() == token && mIsContinuousMode) {
+                        rearm(resultAt, token);
+                    }
+                }
+            });
             return;
         }
 
-        onFailed(new FingerprintIdentifyFailInfo(false, -2, "not match"));
-    }
+        int state = mState.get();
+        if (state != STATE_SUCCEEDED && state != STATE_FAILED) {
+            return;
+        }
 
-    protected void onFailed(final FingerprintIdentifyFailInfo failInfo) {
-        if (mIsCanceledIdentify) {
+        mNumberOfFailures.set(0);
+        mDeadline = 0;
+        if (!mState.compareAndSet(state, STATE_ARMING)) {
             return;
         }
 
-        final boolean isStartFailedByDeviceLocked = failInfo.deviceLocked && mNumberOfFailures == 0;
+        doIdentify();
+        if (finishArming()) {
+            FingerprintMetrics.onContinuousRearm(SystemClock.elapsedRealtime() - resultAt);
+        }
+    }
+
+    // EVENT
+    private boolean hasEventSubscribers() {
+        IdentifyEventPublisher eventPublisher = mEventPublisher;
+        return eventPublisher != null && eventPublisher.hasSubscribers();
+    }
 
-        mNumberOfFailures = mMaxAvailableTimes;
+    private FingerprintIdentifyEvent createEvent(int type) {
+        return new FingerprintIdentifyEvent(type, getClass().getName());
+    }
 
-        if (mIdentifyListener != null) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        if (isStartFailedByDeviceLocked) {
-                            mIdentifyListener.onStartFailedByDeviceLocked();
-                        } else {
-                            mIdentifyListener.onFailed(failInfo);
+    private void publish(int type) {
+        if (hasEventSubscribers()) {
+            mEventPublisher.publish(createEvent(type));
+        }
+    }
+
+    // DISPATCH
+    // the shared dispatch is reused unless the previous event is still queued in the callback executor
+    private EventDispatch obtainEventDispatch(IdentifyListener identifyListener, int event) {
+        EventDispatch eventDispatch = mEventDispatch.mIsPending.compareAndSet(false, true)
+                ? mEventDispatch : new EventDispatch(false);
+        eventDispatch.mListener = identifyListener;
+        eventDispatch.mEvent = event;
+        return eventDispatch;
+    }
+
+    private final class EventDispatch implements Runnable {
+
+        final AtomicBoolean mIsPending = new AtomicBoolean();
+        final boolean mIsShared;
+
+        IdentifyListener mListener;
+        int mEvent;
+        int mChancesLeft;
+        Cipher mCipher;
+        FingerprintIdentifyFailInfo mFailInfo;
+
+        EventDispatch(boolean isShared) {
+            mIsShared = isShared;
+        }
+
+        @Override
+        public void run() {
+            IdentifyListener identifyListener = mListener;
+            int event = mEvent;
+            int chancesLeft = mChancesLeft;
+            Cipher cipher = mCipher;
+            FingerprintIdentifyFailInfo failInfo = mFailInfo;
+
+            mListener = null;
+            mCipher = null;
+            mFailInfo = null;
+            if (mIsShared) {
+                mIsPending.set(false);
+            }
+
+            try {
+                switch (event) {
+                    case EVENT_SUCCEED:
+                        identifyListener.onSucceed(cipher);
+                        break;
+                    case EVENT_NOT_MATCH:
+                        identifyListener.onNotMatch(chancesLeft);
+                        break;
+                    case EVENT_FAILED:
+                        identifyListener.onFailed(failInfo);
+                        break;
+                    case EVENT_START_FAILED_BY_DEVICE_LOCKED:
+                        identifyListener.onStartFailedByDeviceLocked();
+                        break;
+                }
+            } catch (Exception e) {
+                onCatchException(e);
+            }
+        }
+    }
+
+    // STATE
+    // only the caller which wins the transition may deliver the terminal event
+    private boolean moveToTerminalState(int terminalState) {
+        int state;
+        do {
+            state = mState.get();
+            if (!isActive(state)) {
+                return false;
+            }
+        } while (!mState.compareAndSet(state, terminalState));
+
+        cancelTimeout();
+        return true;
+    }
+
+    // after doIdentify(), false if the session did not make it to listening
+    private boolean finishArming() {
+        if (mState.compareAndSet(STATE_ARMING, STATE_LISTENING)) {
+            publish(FingerprintIdentifyEvent.TYPE_ARMED);
+            return true;
+        }
+
+        // the cancel ran before doIdentify() armed the backend, so its doCancelIdentify() had nothing to stop
+        if (mState.get() == STATE_CANCELLED) {
+            cancelBackend();
+        }
+        return false;
+    }
+
+    // TIMEOUT
+    private void scheduleTimeout() {
+        cancelTimeout();
+        long deadline = mDeadline;
+        if (deadline == 0) {
+            return;
+        }
+
+        final int token = mTimeoutToken.get();
+        mTimeoutFuture = ExecutorUtils.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mTimeoutToken.get() == token) {
+                            onFailed(new FingerprintIdentifyFailInfo(false,
+                                    FingerprintIdentifyFailInfo.ERROR_TIMEOUT, "timeout"));
                         }
-                    } catch (Exception e) {
-                        onCatchException(e);
                     }
-                }
-            });
+                });
+            }
+        }, Math.max(0, deadline - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
+    }
+
+    // also drops the references of the scheduled task to the listener
+    private void cancelTimeout() {
+        mTimeoutToken.incrementAndGet();
+        ScheduledFuture<?> timeoutFuture = mTimeoutFuture;
+        mTimeoutFuture = null;
+        if (timeoutFuture != null) {
+            timeoutFuture.cancel(false);
         }
+    }
 
-        cancelIdentify();
+    private static boolean isActive(int state) {
+        return state == STATE_ARMING || state == STATE_LISTENING;
+    }
+
+    public int getIdentifyState() {
+        return mState.get();
+    }
+
+    // a backend arming off the main thread checks it after arming, a cancel may have missed the new session
+    protected boolean isIdentifyActive() {
+        return isActive(mState.get());
     }
 
     protected void onCatchException(Throwable exception) {
@@ -203,9 +677,48 @@ public abstract class BaseFingerprint {
         mIsRegisteredFingerprint = registeredFingerprint;
     }
 
+    public void setKeyRotationEnable(boolean keyRotationEnable) {
+        mIsKeyRotationEnable = keyRotationEnable;
+    }
+
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor != null ? callbackExecutor : ExecutorUtils.mainThread();
+    }
+
+    public void setContinuousMode(boolean continuousMode) {
+        mIsContinuousMode = continuousMode;
+        if (!continuousMode) {
+            mContinuousToken.incrementAndGet();
+        }
+    }
+
+    public void setAutoResumeAfterLockout(boolean autoResumeAfterLockout) {
+        mIsAutoResumeAfterLockout = autoResumeAfterLockout;
+    }
+
+    public void setEventPublisher(IdentifyEventPublisher eventPublisher) {
+        mEventPublisher = eventPublisher;
+    }
+
+    public void setUseSensorThread(boolean useSensorThread) {
+        mIsUseSensorThread = useSensorThread;
+    }
+
+    // the handler for backend callbacks, null means the main looper
+    @Nullable
+    protected Handler getSensorHandler() {
+        return mIsUseSensorThread ? ExecutorUtils.getSensorHandler() : null;
+    }
+
     // OTHER
+    // inline when already on the main thread
     protected void runOnUiThread(Runnable runnable) {
-        mHandler.post(runnable);
+        ExecutorUtils.mainThreadOrInline().execute(runnable);
+    }
+
+    // deliver an event to the listener
+    protected void dispatch(Runnable runnable) {
+        mCallbackExecutor.execute(runnable);
     }
 
     protected boolean needToCallDoIdentifyAgainAfterNotMatch() {
@@ -213,24 +726,166 @@ public abstract class BaseFingerprint {
     }
 
     @Nullable
-    protected <T> T createCryptoObject(Class<T> tClass) {
+    protected <T> T createCryptoObject(final Class<T> tClass) {
+        return createCryptoObject(new CryptoObjectFactory<T>() {
+            @Override
+            public T create(Cipher cipher) {
+                try {
+                    return CryptoObjectHelper.getInstance().createCryptoObject(tClass, cipher);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+    }
+
+    @Nullable
+    protected <T> T createCryptoObject(CryptoObjectFactory<T> factory) {
         int cipherMode = this.mCipherMode;
         byte[] iv = this.mCipherIV;
         if (cipherMode == Cipher.DECRYPT_MODE && iv == null) {
             return null;
         }
         try {
-            CryptoObjectHelper cryptoObjectHelper = new CryptoObjectHelper();
-            if (cipherMode == Cipher.ENCRYPT_MODE) {
-                cryptoObjectHelper.removeKey();
+            CryptoObjectHelper cryptoObjectHelper = CryptoObjectHelper.getInstance();
+            PreparedCipher preparedCipher = takePreparedCipher(cryptoObjectHelper, cipherMode, iv);
+            mIsPreparedCipherInUse = preparedCipher != null;
+            if (preparedCipher == null) {
+                preparedCipher = createCipher(cryptoObjectHelper, cipherMode, iv);
             }
-            return cryptoObjectHelper.createCryptoObject(tClass, cipherMode, iv);
+            mEncryptKeyAlias = preparedCipher.mAlias;
+            mIsKeyLocked = false;
+            return factory.create(preparedCipher.mCipher);
         } catch (Exception e) {
+            mIsKeyLocked = isUserNotAuthenticated(e);
             onCatchException(e);
         }
         return null;
     }
 
+    // the keystore may invalidate the key after prepare(), e.g. on a new enrollment, which only shows once the
+    // backend uses the cipher. build a fresh one once, null if the rejected cipher was not a prepared one
+    @Nullable
+    protected <T> T recreateCryptoObject(CryptoObjectFactory<T> factory) {
+        if (!mIsPreparedCipherInUse) {
+            return null;
+        }
+        mIsPreparedCipherInUse = false;
+        return createCryptoObject(factory);
+    }
+
+    // the time-bound key refused the last cipher. a crypto-less authentication opens its validity window, so
+    // the cipher built right after it needs no second touch
+    protected boolean isKeyLocked() {
+        return mIsKeyLocked;
+    }
+
+    private static boolean isUserNotAuthenticated(Throwable e) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return false;
+        }
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof UserNotAuthenticatedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // build the cipher ahead of startIdentify, it's consumed by the next identify with the same mode and IV
+    public void prepare(int cipherMode, byte[] cipherIV) {
+        // no keystore keys before API 23
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+        // without the key rotation an encryption replaces the key, don't do that before the user identifies
+        if (cipherMode == Cipher.ENCRYPT_MODE && !mIsKeyRotationEnable) {
+            return;
+        }
+        prepareCipher(cipherMode, cipherIV);
+    }
+
+    // the continuous re-arm replaces the key of a plain encryption right after anyway, so it builds the
+    // replacement in background too instead of generating the key in doIdentify()
+    private void prepareCipher(int cipherMode, byte[] cipherIV) {
+        if (cipherMode == Cipher.DECRYPT_MODE && cipherIV == null) {
+            return;
+        }
+        try {
+            mPreparedCipher = createCipher(CryptoObjectHelper.getInstance(), cipherMode, cipherIV);
+            mIsKeyLocked = false;
+        } catch (Throwable e) {
+            // a worker thread, an error of the missing keystore classes would kill the process
+            mIsKeyLocked = isUserNotAuthenticated(e);
+            onCatchException(e);
+        }
+    }
+
+    // a cipher of the key a recent identify unlocked, without the sensor. null for a per-operation key, e.g. of a
+    // debug build, throws if the time-bound key needs a new authentication
+    @Nullable
+    public Cipher createUnlockedDecryptCipher(byte[] cipherIV) throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return null;
+        }
+        CryptoObjectHelper cryptoObjectHelper = CryptoObjectHelper.getInstance();
+        String alias = mIsKeyRotationEnable ? cryptoObjectHelper.getActiveKeyAlias(mContext) : CryptoObjectHelper.KEY_NAME;
+        if (cryptoObjectHelper.isPerOperationKey(alias)) {
+            return null;
+        }
+        return createCipher(cryptoObjectHelper, Cipher.DECRYPT_MODE, cipherIV).mCipher;
+    }
+
+    @Nullable
+    private PreparedCipher takePreparedCipher(CryptoObjectHelper cryptoObjectHelper, int cipherMode, byte[] iv) {
+        PreparedCipher preparedCipher = mPreparedCipher;
+        mPreparedCipher = null;
+        if (preparedCipher == null
+                || preparedCipher.mCipherMode != cipherMode
+                || !Arrays.equals(preparedCipher.mCipherIV, iv)) {
+            return null;
+        }
+
+        // the key was removed or regenerated meanwhile, build a new one
+        if (!cryptoObjectHelper.isCurrentKey(preparedCipher.mAlias, preparedCipher.mKey)) {
+            return null;
+        }
+        return preparedCipher;
+    }
+
+    private PreparedCipher createCipher(CryptoObjectHelper cryptoObjectHelper, int cipherMode, byte[] iv) throws Exception {
+        String alias;
+        if (mIsKeyRotationEnable) {
+            alias = cipherMode == Cipher.ENCRYPT_MODE
+                    ? cryptoObjectHelper.getStagedKeyAlias(mContext)
+                    : cryptoObjectHelper.getActiveKeyAlias(mContext);
+        } else {
+            alias = CryptoObjectHelper.KEY_NAME;
+            if (cipherMode == Cipher.ENCRYPT_MODE) {
+                cryptoObjectHelper.removeKey();
+            }
+        }
+
+        Cipher cipher = cryptoObjectHelper.createCipher(alias, cipherMode, iv);
+        return new PreparedCipher(cipher, cipherMode, iv, alias, cryptoObjectHelper.getCachedKey(alias));
+    }
+
+    private static class PreparedCipher {
+        final Cipher mCipher;
+        final int mCipherMode;
+        final byte[] mCipherIV;
+        final String mAlias;
+        final Key mKey;
+
+        PreparedCipher(Cipher cipher, int cipherMode, byte[] cipherIV, String alias, Key key) {
+            mCipher = cipher;
+            mCipherMode = cipherMode;
+            mCipherIV = cipherIV;
+            mAlias = alias;
+            mKey = key;
+        }
+    }
+
     public interface IdentifyListener {
         void onSucceed(@Nullable Cipher cipher);
 
@@ -0,0 +1,76 @@
+package com.wei.android.lib.fingerprintidentify.base;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+// returned by cancelIdentify, released once the backend confirmed the sensor is free again
+public class CancelHandle {
+
+    private final long mCancelledAt = SystemClock.elapsedRealtime();
+    private final List<Runnable> mListeners = new ArrayList<>();   // guarded by this
+    private boolean mIsReleased = false;                            // guarded by this
+    private boolean mIsConfirmed = false;                           // guarded by this
+
+    CancelHandle() {
+    }
+
+    // for a cancel without anything to release
+    public static CancelHandle createReleased() {
+        CancelHandle cancelHandle = new CancelHandle();
+        cancelHandle.release(true);
+        return cancelHandle;
+    }
+
+    public synchronized boolean isReleased() {
+        return mIsReleased;
+    }
+
+    // false if it was released by the safety timeout instead of the backend
+    public synchronized boolean isConfirmed() {
+        return mIsConfirmed;
+    }
+
+    // runs at once if already released
+    public void whenReleased(final Executor executor, final Runnable runnable) {
+        Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(runnable);
+            }
+        };
+
+        synchronized (this) {
+            if (!mIsReleased) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    long getCancelledAt() {
+        return mCancelledAt;
+    }
+
+    // false if it was already released
+    boolean release(boolean confirmed) {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mIsReleased) {
+                return false;
+            }
+            mIsReleased = true;
+            mIsConfirmed = confirmed;
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+        }
+
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+        return true;
+    }
+}
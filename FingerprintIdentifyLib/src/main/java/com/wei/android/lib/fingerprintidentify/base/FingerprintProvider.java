@@ -0,0 +1,40 @@
+package com.wei.android.lib.fingerprintidentify.base;
+
+import android.content.Context;
+
+/**
+ * Describes one backend for FingerprintIdentify.init().
+ * <p>
+ * Backends are tried from the highest priority to the lowest, and only constructed when
+ * {@link #isApplicable()} passes. Keep the predicate free of IPC and vendor SDK calls, and
+ * refer to the backend by class name, so skipped backends are never loaded.
+ */
+public abstract class FingerprintProvider {
+
+    public static final int PRIORITY_BIOMETRIC = 400;
+    public static final int PRIORITY_ANDROID = 300;
+    public static final int PRIORITY_SAMSUNG = 200;
+    public static final int PRIORITY_MEIZU = 100;
+
+    private final String mFingerprintClassName;
+    private final int mPriority;
+
+    protected FingerprintProvider(String fingerprintClassName, int priority) {
+        mFingerprintClassName = fingerprintClassName;
+        mPriority = priority;
+    }
+
+    public String getFingerprintClassName() {
+        return mFingerprintClassName;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public boolean isApplicable() {
+        return true;
+    }
+
+    public abstract BaseFingerprint create(Context context, BaseFingerprint.ExceptionListener exceptionListener);
+}
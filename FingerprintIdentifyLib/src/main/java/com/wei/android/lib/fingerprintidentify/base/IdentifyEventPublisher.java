@@ -0,0 +1,142 @@
+package com.wei.android.lib.fingerprintidentify.base;
+
+import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyEvent;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+// fans the identify events out to any number of subscribers, every subscriber has its own executor and
+// bounded buffer, so publishing never blocks and a slow subscriber only falls behind on its own events
+public class IdentifyEventPublisher {
+
+    public static final int DEFAULT_BUFFER_SIZE = 16;
+
+    private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    private volatile BaseFingerprint.ExceptionListener mExceptionListener;
+
+    public Subscription subscribe(EventListener eventListener, Executor executor) {
+        return subscribe(eventListener, executor, DEFAULT_BUFFER_SIZE);
+    }
+
+    public Subscription subscribe(EventListener eventListener, Executor executor, int bufferSize) {
+        if (eventListener == null || executor == null || bufferSize <= 0) {
+            throw new IllegalArgumentException("eventListener, executor and a positive bufferSize are required");
+        }
+
+        Subscription subscription = new Subscription(eventListener, executor, bufferSize);
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    public boolean hasSubscribers() {
+        return !mSubscriptions.isEmpty();
+    }
+
+    public void setExceptionListener(BaseFingerprint.ExceptionListener exceptionListener) {
+        mExceptionListener = exceptionListener;
+    }
+
+    // called on the backend thread, only enqueues
+    public void publish(FingerprintIdentifyEvent event) {
+        for (Subscription subscription : mSubscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    private void onCatchException(Throwable exception) {
+        BaseFingerprint.ExceptionListener exceptionListener = mExceptionListener;
+        if (exceptionListener != null && exception != null) {
+            exceptionListener.onCatchException(exception);
+        }
+    }
+
+    public class Subscription {
+
+        private final EventListener mEventListener;
+        private final Executor mExecutor;
+        private final int mBufferSize;
+
+        private final ArrayDeque<FingerprintIdentifyEvent> mBuffer = new ArrayDeque<>();   // guarded by itself
+        private boolean mIsDraining = false;        // guarded by mBuffer
+        private volatile boolean mIsCancelled = false;
+        private volatile long mDroppedCount = 0;
+
+        private final Runnable mDrain = this::drain;
+
+        Subscription(EventListener eventListener, Executor executor, int bufferSize) {
+            mEventListener = eventListener;
+            mExecutor = executor;
+            mBufferSize = bufferSize;
+        }
+
+        public void cancel() {
+            mIsCancelled = true;
+            mSubscriptions.remove(this);
+            synchronized (mBuffer) {
+                mBuffer.clear();
+            }
+        }
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        // events dropped because the buffer was full
+        public long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        void offer(FingerprintIdentifyEvent event) {
+            if (mIsCancelled) {
+                return;
+            }
+
+            synchronized (mBuffer) {
+                // a full buffer drops the oldest event, the terminal event of a session is always the newest
+                if (mBuffer.size() >= mBufferSize) {
+                    mBuffer.pollFirst();
+                    mDroppedCount++;
+                }
+                mBuffer.addLast(event);
+                if (mIsDraining) {
+                    return;
+                }
+                mIsDraining = true;
+            }
+
+            try {
+                mExecutor.execute(mDrain);
+            } catch (Throwable e) {
+                synchronized (mBuffer) {
+                    mIsDraining = false;
+                }
+                onCatchException(e);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                FingerprintIdentifyEvent event;
+                synchronized (mBuffer) {
+                    event = mBuffer.pollFirst();
+                    if (event == null || mIsCancelled) {
+                        mIsDraining = false;
+                        return;
+                    }
+                }
+
+                try {
+                    mEventListener.onEvent(event);
+                } catch (Throwable e) {
+                    onCatchException(e);
+                }
+            }
+        }
+    }
+
+    public interface EventListener {
+        void onEvent(FingerprintIdentifyEvent event);
+    }
+}
@@ -0,0 +1,60 @@
+package com.wei.android.lib.fingerprintidentify.bean;
+
+public class FingerprintCapability {
+    public String fingerprintClassName;         // the selected backend, null if none
+    public boolean fingerprintEnable;
+    public boolean hardwareEnable;
+    public boolean registeredFingerprint;
+    public int canAuthenticateResult = -1;      // BiometricManager.canAuthenticate, -1 if not probed
+
+    public FingerprintCapability() {
+    }
+
+    public FingerprintCapability(String fingerprintClassName, boolean fingerprintEnable,
+                                 boolean hardwareEnable, boolean registeredFingerprint,
+                                 int canAuthenticateResult) {
+        this.fingerprintClassName = fingerprintClassName;
+        this.fingerprintEnable = fingerprintEnable;
+        this.hardwareEnable = hardwareEnable;
+        this.registeredFingerprint = registeredFingerprint;
+        this.canAuthenticateResult = canAuthenticateResult;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FingerprintCapability)) {
+            return false;
+        }
+        FingerprintCapability that = (FingerprintCapability) o;
+        return fingerprintEnable == that.fingerprintEnable
+                && hardwareEnable == that.hardwareEnable
+                && registeredFingerprint == that.registeredFingerprint
+                && canAuthenticateResult == that.canAuthenticateResult
+                && (fingerprintClassName == null ? that.fingerprintClassName == null
+                : fingerprintClassName.equals(that.fingerprintClassName));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = fingerprintClassName != null ? fingerprintClassName.hashCode() : 0;
+        result = 31 * result + (fingerprintEnable ? 1 : 0);
+        result = 31 * result + (hardwareEnable ? 1 : 0);
+        result = 31 * result + (registeredFingerprint ? 1 : 0);
+        result = 31 * result + canAuthenticateResult;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "FingerprintCapability{" +
+                "fingerprintClassName='" + fingerprintClassName + '\'' +
+                ", fingerprintEnable=" + fingerprintEnable +
+                ", hardwareEnable=" + hardwareEnable +
+                ", registeredFingerprint=" + registeredFingerprint +
+                ", canAuthenticateResult=" + canAuthenticateResult +
+                '}';
+    }
+}
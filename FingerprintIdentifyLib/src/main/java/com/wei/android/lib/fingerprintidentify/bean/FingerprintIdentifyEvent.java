@@ -0,0 +1,47 @@
+package com.wei.android.lib.fingerprintidentify.bean;
+
+import android.os.SystemClock;
+
+// TYPE_SUCCEED only tells that the user was identified, the unlocked cipher stays with the identify listener
+public class FingerprintIdentifyEvent {
+
+    public static final int TYPE_ARMED = 1;         // the sensor is listening
+    public static final int TYPE_HELP = 2;          // recoverable problem, e.g. the finger moved too fast
+    public static final int TYPE_NOT_MATCH = 3;
+    public static final int TYPE_SUCCEED = 4;
+    public static final int TYPE_FAILED = 5;
+    public static final int TYPE_CANCELLED = 6;
+
+    public int type;
+    public long timestamp;                          // SystemClock.elapsedRealtime() when it happened
+    public String fingerprintClassName;             // the backend of the session
+
+    public int availableTimes;                      // TYPE_NOT_MATCH
+    public int helpCode;                            // TYPE_HELP
+    public String helpString;                       // TYPE_HELP
+    public FingerprintIdentifyFailInfo failInfo;    // TYPE_FAILED
+
+    public FingerprintIdentifyEvent(int type, String fingerprintClassName) {
+        this.type = type;
+        this.timestamp = SystemClock.elapsedRealtime();
+        this.fingerprintClassName = fingerprintClassName;
+    }
+
+    // no more events of the session follow
+    public boolean isTerminal() {
+        return type == TYPE_SUCCEED || type == TYPE_FAILED || type == TYPE_CANCELLED;
+    }
+
+    @Override
+    public String toString() {
+        return "FingerprintIdentifyEvent{" +
+                "type=" + type +
+                ", timestamp=" + timestamp +
+                ", fingerprintClassName='" + fingerprintClassName + '\'' +
+                ", availableTimes=" + availableTimes +
+                ", helpCode=" + helpCode +
+                ", helpString='" + helpString + '\'' +
+                ", failInfo=" + failInfo +
+                '}';
+    }
+}
@@ -4,24 +4,41 @@ import android.hardware.fingerprint.FingerprintManager;
 import android.util.Log;
 
 public class FingerprintIdentifyFailInfo {
-    public boolean deviceLocked;
-    public int errorCode;
-    public String errString;
 
-    public Throwable throwable;
+    public static final int ERROR_NOT_MATCH = -2;       // ran out of the available times
+    public static final int ERROR_NOT_ENABLE = -3;      // no usable backend when the identify started
+    public static final int ERROR_PREEMPTED = -4;       // replaced by an identify of another cipher
+    public static final int ERROR_LOCKED_OUT = -5;      // rejected without the sensor, the lockout has not expired
+    public static final int ERROR_TIMEOUT = -6;         // the deadline of the identify passed
+
+    // shared instance for the fixed "not match" failure, safe to share as the fields are final
+    public static final FingerprintIdentifyFailInfo NOT_MATCH =
+            new FingerprintIdentifyFailInfo(false, ERROR_NOT_MATCH, "not match");
+
+    public final boolean deviceLocked;
+    public final int errorCode;
+    public final String errString;
+
+    public final Throwable throwable;
+
+    private String mStackTraceString;       // formatted on first use
 
     public FingerprintIdentifyFailInfo(boolean deviceLocked) {
-        this.deviceLocked = deviceLocked;
+        this(deviceLocked, 0, null, null);
     }
 
     public FingerprintIdentifyFailInfo(boolean deviceLocked, int errorCode, String errString) {
-        this.deviceLocked = deviceLocked;
-        this.errorCode = errorCode;
-        this.errString = errString;
+        this(deviceLocked, errorCode, errString, null);
     }
 
     public FingerprintIdentifyFailInfo(boolean deviceLocked, Throwable throwable) {
+        this(deviceLocked, 0, null, throwable);
+    }
+
+    private FingerprintIdentifyFailInfo(boolean deviceLocked, int errorCode, String errString, Throwable throwable) {
         this.deviceLocked = deviceLocked;
+        this.errorCode = errorCode;
+        this.errString = errString;
         this.throwable = throwable;
     }
 
@@ -43,7 +60,15 @@ public class FingerprintIdentifyFailInfo {
                 ", errString='" + errString + '\'' +
                 ", throwable=" + throwable +
                 ", cause=" + cause +
-                ", throwable.cause=" + Log.getStackTraceString(throwable) +
+                ", throwable.cause=" + getStackTraceString() +
                 '}';
     }
+
+    public String getStackTraceString() {
+        if (mStackTraceString == null) {
+            Throwable cause = throwable == null ? null : throwable.getCause();
+            mStackTraceString = Log.getStackTraceString(cause != null ? cause : throwable);
+        }
+        return mStackTraceString;
+    }
 }
@@ -0,0 +1,28 @@
+package com.wei.android.lib.fingerprintidentify.bean;
+
+import javax.crypto.Cipher;
+
+public class FingerprintIdentifyResult {
+    public boolean succeed;
+    public Cipher cipher;                           // the authenticated cipher, null if failed or not available
+    public FingerprintIdentifyFailInfo failInfo;    // null if succeed
+
+    public FingerprintIdentifyResult(Cipher cipher) {
+        this.succeed = true;
+        this.cipher = cipher;
+    }
+
+    public FingerprintIdentifyResult(FingerprintIdentifyFailInfo failInfo) {
+        this.succeed = false;
+        this.failInfo = failInfo;
+    }
+
+    @Override
+    public String toString() {
+        return "FingerprintIdentifyResult{" +
+                "succeed=" + succeed +
+                ", cipher=" + cipher +
+                ", failInfo=" + failInfo +
+                '}';
+    }
+}
@@ -10,6 +10,8 @@ import androidx.core.os.CancellationSignal;
 import com.wei.android.lib.fingerprintidentify.aosp.FingerprintManagerCompat;
 import com.wei.android.lib.fingerprintidentify.base.BaseFingerprint;
 import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyFailInfo;
+import com.wei.android.lib.fingerprintidentify.util.CryptoObjectFactory;
+import com.wei.android.lib.fingerprintidentify.util.FingerprintMetrics;
 import com.wei.android.lib.fingerprintidentify.util.NotifyUtils;
 
 /**
@@ -38,9 +40,76 @@ import com.wei.android.lib.fingerprintidentify.util.NotifyUtils;
 public class AndroidFingerprint extends BaseFingerprint {
 
     private static final String TAG = "AndroidFingerprint";
-    private CancellationSignal mCancellationSignal;
+    private static final CryptoObjectFactory<FingerprintManagerCompat.CryptoObject> CRYPTO_OBJECT_FACTORY =
+            cipher -> new FingerprintManagerCompat.CryptoObject(cipher);
+    private volatile CancellationSignal mCancellationSignal;  // armed on the sensor thread too, see authenticate()
+    private volatile boolean mIsAuthenticating = false;         // until the platform ended the authenticate
     private FingerprintManagerCompat mFingerprintManagerCompat;
 
+    // created once and reused by every authenticate, so a re-arm allocates no callbacks
+    private volatile IAuthCallback mAuthCallback;
+
+    private final IAuthCallback mSucceedCallback = result -> {
+        FingerprintManagerCompat.CryptoObject crypto = result.getCryptoObject();
+        if (crypto != null) {
+            onSucceed(crypto.getCipher());
+        } else {
+            onSucceed(null);
+        }
+    };
+
+    // one keystore attempt after the touch, its cipher is used for the single touch or the second touch
+    private final IAuthCallback mFallbackCallback = result -> {
+        boolean wasKeyLocked = isKeyLocked();
+        FingerprintManagerCompat.CryptoObject crypto = createCryptoObject(CRYPTO_OBJECT_FACTORY);
+        if (wasKeyLocked && crypto != null) {
+            FingerprintMetrics.onIdentifyPath(FingerprintMetrics.PATH_SINGLE_TOUCH);
+            onSucceed(crypto.getCipher());
+            return;
+        }
+
+        FingerprintMetrics.onIdentifyPath(FingerprintMetrics.PATH_TWO_TOUCH);
+        NotifyUtils.notifyFingerprintTapped(mContext);
+        if (crypto == null) {
+            Log.e(TAG, "Unable to auth with CryptoObject, use fallback instead.");
+        }
+        authenticate(crypto, mSucceedCallback);
+    };
+
+    private final FingerprintManagerCompat.AuthenticationCallback mAuthenticationCallback = new FingerprintManagerCompat.AuthenticationCallback() {
+        @Override
+        public void onAuthenticationSucceeded(FingerprintManagerCompat.AuthenticationResult result) {
+            super.onAuthenticationSucceeded(result);
+            mIsAuthenticating = false;
+            mAuthCallback.onAuthenticationSucceeded(result);
+        }
+
+        @Override
+        public void onAuthenticationFailed() {
+            super.onAuthenticationFailed();
+            onNotMatch();
+        }
+
+        @Override
+        public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
+            super.onAuthenticationHelp(helpMsgId, helpString);
+            onHelp(helpMsgId, helpString);
+        }
+
+        @Override
+        public void onAuthenticationError(int errMsgId, CharSequence errString) {
+            super.onAuthenticationError(errMsgId, errString);
+            mIsAuthenticating = false;
+            if (errMsgId == FingerprintManager.FINGERPRINT_ERROR_CANCELED && onCancelReleased()) {
+                return;
+            }
+
+            boolean deviceLocked = errMsgId == FingerprintManager.FINGERPRINT_ERROR_LOCKOUT ||
+                    errMsgId == FingerprintManager.FINGERPRINT_ERROR_LOCKOUT_PERMANENT;
+            onFailed(new FingerprintIdentifyFailInfo(deviceLocked, errMsgId, errString.toString()));
+        }
+    };
+
     public AndroidFingerprint(Context context, ExceptionListener exceptionListener, boolean iSupportAndroidL) {
         super(context, exceptionListener);
 
@@ -61,63 +130,45 @@ public class AndroidFingerprint extends BaseFingerprint {
 
     @Override
     protected void doIdentify() {
-        FingerprintManagerCompat.CryptoObject cryptoObject = createCryptoObject(FingerprintManagerCompat.CryptoObject.class);
+        FingerprintManagerCompat.CryptoObject cryptoObject = createCryptoObject(CRYPTO_OBJECT_FACTORY);
         if (cryptoObject == null) {
             Log.e(TAG, "Unable to auth with CryptoObject, retry authenticate.");
         }
-        IAuthCallback callback = result -> {
-            FingerprintManagerCompat.CryptoObject crypto = result.getCryptoObject();
-            if (crypto != null) {
-                onSucceed(crypto.getCipher());
-            } else {
-                onSucceed(null);
-            }
-        };
         if (cryptoObject != null) {
-            authenticate(cryptoObject, callback);
+            FingerprintMetrics.onIdentifyPath(FingerprintMetrics.PATH_CRYPTO);
+            authenticate(cryptoObject, mSucceedCallback);
         } else {
             /**
              * android.security.keystore.UserNotAuthenticatedException: User not authenticated
              * 通常是用户使用了不够安全的方式解锁手机 或上一次验证时间已过30s + setUserAuthenticationValidityDurationSeconds(30)
              * 先强制要求用户不用CryptoObject认证一遍先. 在走原先的认证逻辑
+             * 认证后密钥在有效期内可用, 能直接创建Cipher时不再要求第二次按压
              */
-            authenticate(null, result -> {
-                NotifyUtils.notifyFingerprintTapped(mContext);
-                FingerprintManagerCompat.CryptoObject crypto = createCryptoObject(FingerprintManagerCompat.CryptoObject.class);
-                if (crypto == null) {
-                    Log.e(TAG, "Unable to auth with CryptoObject, use fallback instead.");
-                }
-                authenticate(crypto, callback);
-            });
+            authenticate(null, mFallbackCallback);
         }
     }
 
     private void authenticate(FingerprintManagerCompat.CryptoObject cryptoObject, IAuthCallback callback) {
         try {
-            mCancellationSignal = new CancellationSignal();
-            mFingerprintManagerCompat.authenticate(cryptoObject, 0, mCancellationSignal, new FingerprintManagerCompat.AuthenticationCallback() {
-                @Override
-                public void onAuthenticationSucceeded(FingerprintManagerCompat.AuthenticationResult result) {
-                    super.onAuthenticationSucceeded(result);
-                    callback.onAuthenticationSucceeded(result);
-                }
-
-                @Override
-                public void onAuthenticationFailed() {
-                    super.onAuthenticationFailed();
-                    onNotMatch();
-                }
-
-                @Override
-                public void onAuthenticationError(int errMsgId, CharSequence errString) {
-                    super.onAuthenticationError(errMsgId, errString);
-                    boolean deviceLocked = errMsgId == FingerprintManager.FINGERPRINT_ERROR_LOCKOUT ||
-                            errMsgId == FingerprintManager.FINGERPRINT_ERROR_LOCKOUT_PERMANENT;
-                    onFailed(new FingerprintIdentifyFailInfo(deviceLocked, errMsgId, errString.toString()));
-                }
-            }, null);
+            CancellationSignal cancellationSignal = new CancellationSignal();
+            mCancellationSignal = cancellationSignal;
+            mAuthCallback = callback;
+            mIsAuthenticating = true;
+            mFingerprintManagerCompat.authenticate(cryptoObject, 0, cancellationSignal, mAuthenticationCallback, getSensorHandler());
+
+            // a cancel on the main thread may have run before the new signal was set, undo the re-arm
+            if (!isIdentifyActive()) {
+                cancellationSignal.cancel();
+            }
         } catch (Throwable e) {
+            mIsAuthenticating = false;
             onCatchException(e);
+            FingerprintManagerCompat.CryptoObject recreated = cryptoObject != null
+                    ? recreateCryptoObject(CRYPTO_OBJECT_FACTORY) : null;
+            if (recreated != null) {
+                authenticate(recreated, callback);
+                return;
+            }
             onFailed(new FingerprintIdentifyFailInfo(false, e));
         }
     }
@@ -137,6 +188,12 @@ public class AndroidFingerprint extends BaseFingerprint {
         }
     }
 
+    // the platform reports FINGERPRINT_ERROR_CANCELED once the cancel took effect, unless the authenticate already ended
+    @Override
+    protected boolean isCancelConfirmedByBackend() {
+        return mIsAuthenticating && mFingerprintManagerCompat != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
     @Override
     protected boolean needToCallDoIdentifyAgainAfterNotMatch() {
         return false;
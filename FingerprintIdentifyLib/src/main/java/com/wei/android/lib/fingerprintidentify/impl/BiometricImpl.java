@@ -15,6 +15,8 @@ import androidx.biometric.BiometricManager;
 
 import com.wei.android.lib.fingerprintidentify.base.BaseFingerprint;
 import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyFailInfo;
+import com.wei.android.lib.fingerprintidentify.util.CryptoObjectFactory;
+import com.wei.android.lib.fingerprintidentify.util.FingerprintMetrics;
 import com.wei.android.lib.fingerprintidentify.util.NotifyUtils;
 
 import java.util.Locale;
@@ -24,7 +26,11 @@ import java.util.concurrent.Executor;
 public class BiometricImpl extends BaseFingerprint {
 
     private static final String TAG = "BiometricImpl";
-    private CancellationSignal mCancellationSignal;
+    private static final CryptoObjectFactory<BiometricPrompt.CryptoObject> CRYPTO_OBJECT_FACTORY =
+            cipher -> new BiometricPrompt.CryptoObject(cipher);
+    private volatile CancellationSignal mCancellationSignal;  // armed on the sensor thread too, see authenticate()
+    private volatile boolean mIsAuthenticating = false;         // until the prompt ended the authenticate
+    private int mCanAuthenticateResult = -1;
 
     public BiometricImpl(Context context, ExceptionListener exceptionListener) {
         super(context, exceptionListener);
@@ -37,6 +43,7 @@ public class BiometricImpl extends BaseFingerprint {
             BiometricManager biometricManager = BiometricManager.from(context);
             setHardwareEnable(false);
             int v = biometricManager.canAuthenticate(BiometricManager.Authenticators.BIOMETRIC_STRONG);
+            mCanAuthenticateResult = v;
             switch (v) {
                 case BiometricManager.BIOMETRIC_SUCCESS:
                     setHardwareEnable(true);
@@ -61,9 +68,13 @@ public class BiometricImpl extends BaseFingerprint {
         }
     }
 
+    public int getCanAuthenticateResult() {
+        return mCanAuthenticateResult;
+    }
+
     @Override
     protected void doIdentify() {
-        BiometricPrompt.CryptoObject cryptoObject = createCryptoObject(BiometricPrompt.CryptoObject.class);
+        BiometricPrompt.CryptoObject cryptoObject = createCryptoObject(CRYPTO_OBJECT_FACTORY);
         if (cryptoObject == null) {
             Log.e(TAG, "Unable to auth with CryptoObject, retry authenticate.");
         }
@@ -76,16 +87,27 @@ public class BiometricImpl extends BaseFingerprint {
             }
         };
         if (cryptoObject != null) {
+            FingerprintMetrics.onIdentifyPath(FingerprintMetrics.PATH_CRYPTO);
             authenticate(cryptoObject, callback);
         } else {
             /**
              * android.security.keystore.UserNotAuthenticatedException: User not authenticated
              * 通常是用户使用了不够安全的方式解锁手机 或上一次验证时间已过30s + setUserAuthenticationValidityDurationSeconds(30)
              * 先强制要求用户不用CryptoObject认证一遍先. 再走原先的认证逻辑
+             * 认证后密钥在有效期内可用, 能直接创建Cipher时不再要求第二次按压
              */
             authenticate(null, result -> {
+                // one keystore attempt after the touch, its cipher is used for the single touch or the second touch
+                boolean wasKeyLocked = isKeyLocked();
+                BiometricPrompt.CryptoObject crypto = createCryptoObject(CRYPTO_OBJECT_FACTORY);
+                if (wasKeyLocked && crypto != null) {
+                    FingerprintMetrics.onIdentifyPath(FingerprintMetrics.PATH_SINGLE_TOUCH);
+                    onSucceed(crypto.getCipher());
+                    return;
+                }
+
+                FingerprintMetrics.onIdentifyPath(FingerprintMetrics.PATH_TWO_TOUCH);
                 NotifyUtils.notifyFingerprintTapped(mContext);
-                BiometricPrompt.CryptoObject crypto = createCryptoObject(BiometricPrompt.CryptoObject.class);
                 if (crypto == null) {
                     Log.e(TAG, "Unable to auth with CryptoObject, retry authenticate.");
                 }
@@ -97,11 +119,13 @@ public class BiometricImpl extends BaseFingerprint {
     }
     private void authenticate(BiometricPrompt.CryptoObject cryptoObject, IAuthCallback authCallback) {
         try {
-            mCancellationSignal = new CancellationSignal();
+            CancellationSignal cancellationSignal = new CancellationSignal();
+            mCancellationSignal = cancellationSignal;
             BiometricPrompt.Builder builder = new BiometricPrompt.Builder(this.mContext);
             builder.setTitle(" ");
             String cancelText = Locale.getDefault().getLanguage().toLowerCase().contains("zh") ? "取消" : "Cancel";
-            builder.setNegativeButton(cancelText, new PromptExecutor(), (dialog, which) -> {
+            builder.setNegativeButton(cancelText, PromptExecutor.MAIN, (dialog, which) -> {
+                mIsAuthenticating = false;
                 onFailed(new FingerprintIdentifyFailInfo(false,
                         FingerprintManager.FINGERPRINT_ERROR_USER_CANCELED, "user cancel"));
             });
@@ -116,6 +140,7 @@ public class BiometricImpl extends BaseFingerprint {
                 @Override
                 public void onAuthenticationSucceeded(BiometricPrompt.AuthenticationResult result) {
                     super.onAuthenticationSucceeded(result);
+                    mIsAuthenticating = false;
                     authCallback.onAuthenticationSucceeded(result);
                 }
 
@@ -125,21 +150,47 @@ public class BiometricImpl extends BaseFingerprint {
                     onNotMatch();
                 }
 
+                @Override
+                public void onAuthenticationHelp(int helpCode, CharSequence helpString) {
+                    super.onAuthenticationHelp(helpCode, helpString);
+                    onHelp(helpCode, helpString);
+                }
+
                 @Override
                 public void onAuthenticationError(int errorCode, CharSequence errString) {
                     super.onAuthenticationError(errorCode, errString);
+                    mIsAuthenticating = false;
+                    if (errorCode == BiometricPrompt.BIOMETRIC_ERROR_CANCELED && onCancelReleased()) {
+                        return;
+                    }
+
                     boolean deviceLocked = errorCode == FingerprintManager.FINGERPRINT_ERROR_LOCKOUT ||
                             errorCode == FingerprintManager.FINGERPRINT_ERROR_LOCKOUT_PERMANENT;
                     onFailed(new FingerprintIdentifyFailInfo(deviceLocked, errorCode, errString.toString()));
                 }
             };
+            Handler sensorHandler = getSensorHandler();
+            Executor executor = sensorHandler != null ? new PromptExecutor(sensorHandler) : PromptExecutor.MAIN;
+            mIsAuthenticating = true;
             if (cryptoObject != null) {
-                prompt.authenticate(cryptoObject, this.mCancellationSignal, new PromptExecutor(), callback);
+                prompt.authenticate(cryptoObject, cancellationSignal, executor, callback);
             } else {
-                prompt.authenticate(this.mCancellationSignal, new PromptExecutor(), callback);
+                prompt.authenticate(cancellationSignal, executor, callback);
+            }
+
+            // a cancel on the main thread may have run before the new signal was set, undo the re-arm
+            if (!isIdentifyActive()) {
+                cancellationSignal.cancel();
             }
         } catch (Throwable e) {
+            mIsAuthenticating = false;
             onCatchException(e);
+            BiometricPrompt.CryptoObject recreated = cryptoObject != null
+                    ? recreateCryptoObject(CRYPTO_OBJECT_FACTORY) : null;
+            if (recreated != null) {
+                authenticate(recreated, authCallback);
+                return;
+            }
             onFailed(new FingerprintIdentifyFailInfo(false, e));
         }
     }
@@ -154,16 +205,26 @@ public class BiometricImpl extends BaseFingerprint {
             onCatchException(e);
         }
     }
+    // the prompt reports BIOMETRIC_ERROR_CANCELED once the cancel took effect, unless the authenticate already ended
+    @Override
+    protected boolean isCancelConfirmedByBackend() {
+        return mIsAuthenticating && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P;
+    }
+
     @Override
     protected boolean needToCallDoIdentifyAgainAfterNotMatch() {
         return false;
     }
 
     private static class PromptExecutor implements Executor {
-        private final Handler mPromptHandler = new Handler(Looper.getMainLooper());
+        static final PromptExecutor MAIN = new PromptExecutor(new Handler(Looper.getMainLooper()));
+
+        private final Handler mPromptHandler;
 
         @SuppressWarnings("WeakerAccess") /* synthetic access */
-        PromptExecutor() {}
+        PromptExecutor(Handler promptHandler) {
+            mPromptHandler = promptHandler;
+        }
 
         @Override
         public void execute(@NonNull Runnable runnable) {
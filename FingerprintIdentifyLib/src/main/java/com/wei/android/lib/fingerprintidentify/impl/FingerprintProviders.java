@@ -0,0 +1,77 @@
+package com.wei.android.lib.fingerprintidentify.impl;
+
+import android.content.Context;
+import android.os.Build;
+import android.text.TextUtils;
+
+import com.wei.android.lib.fingerprintidentify.base.BaseFingerprint;
+import com.wei.android.lib.fingerprintidentify.base.FingerprintProvider;
+
+/**
+ * The built-in backends. The backend classes are only referenced inside create(),
+ * so the vendor SDKs are not loaded on devices where the predicate fails.
+ */
+public class FingerprintProviders {
+
+    private static final String PACKAGE = "com.wei.android.lib.fingerprintidentify.impl.";
+
+    public static FingerprintProvider biometric() {
+        return new FingerprintProvider(PACKAGE + "BiometricImpl", FingerprintProvider.PRIORITY_BIOMETRIC) {
+            @Override
+            public boolean isApplicable() {
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.P;
+            }
+
+            @Override
+            public BaseFingerprint create(Context context, BaseFingerprint.ExceptionListener exceptionListener) {
+                return new BiometricImpl(context, exceptionListener);
+            }
+        };
+    }
+
+    public static FingerprintProvider android(final boolean supportAndroidL) {
+        return new FingerprintProvider(PACKAGE + "AndroidFingerprint", FingerprintProvider.PRIORITY_ANDROID) {
+            @Override
+            public boolean isApplicable() {
+                return supportAndroidL || Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+            }
+
+            @Override
+            public BaseFingerprint create(Context context, BaseFingerprint.ExceptionListener exceptionListener) {
+                return new AndroidFingerprint(context, exceptionListener, supportAndroidL);
+            }
+        };
+    }
+
+    public static FingerprintProvider samsung() {
+        return new FingerprintProvider(PACKAGE + "SamsungFingerprint", FingerprintProvider.PRIORITY_SAMSUNG) {
+            @Override
+            public boolean isApplicable() {
+                return isManufacturer("SAMSUNG");
+            }
+
+            @Override
+            public BaseFingerprint create(Context context, BaseFingerprint.ExceptionListener exceptionListener) {
+                return new SamsungFingerprint(context, exceptionListener);
+            }
+        };
+    }
+
+    public static FingerprintProvider meiZu() {
+        return new FingerprintProvider(PACKAGE + "MeiZuFingerprint", FingerprintProvider.PRIORITY_MEIZU) {
+            @Override
+            public boolean isApplicable() {
+                return isManufacturer("MEIZU");
+            }
+
+            @Override
+            public BaseFingerprint create(Context context, BaseFingerprint.ExceptionListener exceptionListener) {
+                return new MeiZuFingerprint(context, exceptionListener);
+            }
+        };
+    }
+
+    private static boolean isManufacturer(String manufacturer) {
+        return !TextUtils.isEmpty(Build.MANUFACTURER) && Build.MANUFACTURER.toUpperCase().contains(manufacturer);
+    }
+}
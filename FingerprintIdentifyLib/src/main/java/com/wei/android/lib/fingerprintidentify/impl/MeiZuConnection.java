@@ -0,0 +1,132 @@
+package com.wei.android.lib.fingerprintidentify.impl;
+
+import android.util.Log;
+
+import com.fingerprints.service.FingerprintManager;
+import com.wei.android.lib.fingerprintidentify.util.ExecutorUtils;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// one vendor connection shared by the MeiZu sessions of the process, open while any session holds it and
+// for a short idle time after, so re-arms and back-to-back identifies skip the round-trip of open()
+class MeiZuConnection {
+
+    private static final String TAG = "MeiZuConnection";
+    private static final long IDLE_RELEASE_MILLIS = 10 * 1000;
+
+    private static final Object sLock = new Object();
+    private static FingerprintManager sManager;         // guarded by sLock
+    private static int sReferences = 0;                 // guarded by sLock
+    private static int[] sIds;                          // getIds() of the current session, guarded by sLock
+    private static ScheduledFuture<?> sIdleRelease;     // guarded by sLock
+    private static Object sIdentifyOwner;               // the session of the running identify, guarded by sLock
+
+    // null if the vendor service is not available
+    static FingerprintManager acquire() {
+        synchronized (sLock) {
+            cancelIdleRelease();
+            if (sManager == null) {
+                sManager = FingerprintManager.open();
+                sIds = null;
+            }
+            if (sManager != null) {
+                sReferences++;
+            }
+            return sManager;
+        }
+    }
+
+    // close now or after the idle time, once nobody holds the connection
+    static void release(boolean immediately) {
+        synchronized (sLock) {
+            if (sReferences > 0) {
+                sReferences--;
+            }
+            if (sReferences > 0 || sManager == null) {
+                return;
+            }
+
+            if (immediately) {
+                close();
+            } else {
+                cancelIdleRelease();
+                sIdleRelease = ExecutorUtils.getScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (sLock) {
+                            if (sReferences == 0) {
+                                close();
+                            }
+                        }
+                    }
+                }, IDLE_RELEASE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // the identify of the owner replaces the one of any other session on the connection
+    static void startIdentify(Object owner, FingerprintManager manager, FingerprintManager.IdentifyCallback callback) {
+        synchronized (sLock) {
+            manager.startIdentify(callback, getIds());
+            sIdentifyOwner = owner;
+        }
+    }
+
+    // the identify of the owner ended by itself, with a match or no match
+    static void onIdentifyFinished(Object owner) {
+        synchronized (sLock) {
+            if (sIdentifyOwner == owner) {
+                sIdentifyOwner = null;
+            }
+        }
+    }
+
+    // abort() stops whatever identify runs on the shared connection, so only abort the owner's own
+    static void abortIdentify(Object owner, FingerprintManager manager) {
+        synchronized (sLock) {
+            if (sIdentifyOwner != owner) {
+                return;
+            }
+            sIdentifyOwner = null;
+            manager.abort();
+        }
+    }
+
+    static int[] getIds() {
+        synchronized (sLock) {
+            if (sIds == null && sManager != null) {
+                sIds = sManager.getIds();
+            }
+            return sIds;
+        }
+    }
+
+    // startIdentify only matches the ids it is given, so they are read again for every session, enrollments may
+    // have changed since the last one. the cache only serves the re-arms within a session
+    static void invalidateIds() {
+        synchronized (sLock) {
+            sIds = null;
+        }
+    }
+
+    private static void close() {
+        cancelIdleRelease();
+        FingerprintManager manager = sManager;
+        sManager = null;
+        sIds = null;
+        sIdentifyOwner = null;
+        try {
+            manager.release();
+        } catch (Throwable e) {
+            Log.e(TAG, "release", e);
+        }
+    }
+
+    private static void cancelIdleRelease() {
+        if (sIdleRelease != null) {
+            sIdleRelease.cancel(false);
+            sIdleRelease = null;
+        }
+    }
+}
@@ -33,59 +33,75 @@ import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyFailInfo;
  */
 public class MeiZuFingerprint extends BaseFingerprint {
 
-    private FingerprintManager mMeiZuFingerprintManager;
+    private volatile FingerprintManager mMeiZuFingerprintManager;  // held from the first arm of a session to its end
+
+    private final FingerprintManager.IdentifyCallback mIdentifyCallback = new FingerprintManager.IdentifyCallback() {
+        @Override
+        public void onIdentified(int fingerprintId, boolean updated) {
+            MeiZuConnection.onIdentifyFinished(MeiZuFingerprint.this);
+            onSucceed(null);
+        }
+
+        @Override
+        public void onNoMatch() {
+            MeiZuConnection.onIdentifyFinished(MeiZuFingerprint.this);
+            onNotMatch();
+        }
+    };
 
     public MeiZuFingerprint(Context context, ExceptionListener exceptionListener) {
         super(context, exceptionListener);
 
         try {
-            mMeiZuFingerprintManager = FingerprintManager.open();
-            if (mMeiZuFingerprintManager != null) {
-                setHardwareEnable(isMeiZuDevice(Build.MANUFACTURER));
-                int[] fingerprintIds = mMeiZuFingerprintManager.getIds();
-                setRegisteredFingerprint(fingerprintIds != null && fingerprintIds.length > 0);
+            FingerprintManager fingerprintManager = MeiZuConnection.acquire();
+            if (fingerprintManager != null) {
+                try {
+                    setHardwareEnable(isMeiZuDevice(Build.MANUFACTURER));
+                    MeiZuConnection.invalidateIds();
+                    int[] fingerprintIds = MeiZuConnection.getIds();
+                    setRegisteredFingerprint(fingerprintIds != null && fingerprintIds.length > 0);
+                } finally {
+                    // kept open for a while, the identify usually follows the probe
+                    MeiZuConnection.release(false);
+                }
             }
         } catch (Throwable e) {
             onCatchException(e);
         }
-
-        releaseMBack();
     }
 
     @Override
     protected void doIdentify() {
         try {
-            mMeiZuFingerprintManager = FingerprintManager.open();
-            mMeiZuFingerprintManager.startIdentify(new FingerprintManager.IdentifyCallback() {
-                @Override
-                public void onIdentified(int i, boolean b) {
-                    onSucceed(null);
-                }
-
-                @Override
-                public void onNoMatch() {
-                    onNotMatch();
-                }
-            }, mMeiZuFingerprintManager.getIds());
+            if (mMeiZuFingerprintManager == null) {
+                mMeiZuFingerprintManager = MeiZuConnection.acquire();
+                MeiZuConnection.invalidateIds();
+            }
+            MeiZuConnection.startIdentify(this, mMeiZuFingerprintManager, mIdentifyCallback);
         } catch (Throwable e) {
             onCatchException(e);
             onFailed(new FingerprintIdentifyFailInfo(false, e));
         }
     }
 
+    // after a success the connection idles for the next identify, a cancel or failure releases it at once
     @Override
     protected void doCancelIdentify() {
-        releaseMBack();
-    }
+        FingerprintManager fingerprintManager = mMeiZuFingerprintManager;
+        if (fingerprintManager == null) {
+            return;
+        }
+        mMeiZuFingerprintManager = null;
 
-    private void releaseMBack() {
+        boolean succeeded = getIdentifyState() == STATE_SUCCEEDED;
         try {
-            if (mMeiZuFingerprintManager != null) {
-                mMeiZuFingerprintManager.release();
+            if (!succeeded) {
+                MeiZuConnection.abortIdentify(this, fingerprintManager);
             }
         } catch (Throwable e) {
             onCatchException(e);
         }
+        MeiZuConnection.release(!succeeded);
     }
 
     private boolean isMeiZuDevice(String manufacturer) {
@@ -2,11 +2,11 @@ package com.wei.android.lib.fingerprintidentify.impl;
 
 import android.content.Context;
 
-import com.samsung.android.sdk.pass.Spass;
 import com.samsung.android.sdk.pass.SpassFingerprint;
 import com.samsung.android.sdk.pass.SpassInvalidStateException;
 import com.wei.android.lib.fingerprintidentify.base.BaseFingerprint;
 import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyFailInfo;
+import com.wei.android.lib.fingerprintidentify.util.ExecutorUtils;
 
 /**
  * Copyright (c) 2017 Awei
@@ -35,27 +35,37 @@ public class SamsungFingerprint extends BaseFingerprint {
 
     private int mResultCode = -1;
     private SpassFingerprint mSpassFingerprint;
+    private volatile boolean mIsIdentifying = false;    // until Spass completed the identify
 
     public SamsungFingerprint(Context context, ExceptionListener exceptionListener) {
         super(context, exceptionListener);
 
         try {
-            Spass spass = new Spass();
-            spass.initialize(mContext);
-            mSpassFingerprint = new SpassFingerprint(mContext);
-            setHardwareEnable(spass.isFeatureEnabled(Spass.DEVICE_FINGERPRINT));
+            SpassHolder spassHolder = SpassHolder.get(mContext);
+            if (spassHolder == null) {
+                return;
+            }
+            mSpassFingerprint = spassHolder.mSpassFingerprint;
+            setHardwareEnable(spassHolder.mIsFeatureEnabled);
             setRegisteredFingerprint(mSpassFingerprint.hasRegisteredFinger());
         } catch (Throwable e) {
             onCatchException(e);
         }
     }
 
+    // always posted, the re-arm after a not match must not start Spass again inside its own onCompleted
     @Override
     protected void doIdentify() {
-        runOnUiThread(new Runnable() {
+        ExecutorUtils.getMainHandler().post(new Runnable() {
             @Override
             public void run() {
+                // cancelled while the start was queued
+                if (!isIdentifyActive()) {
+                    return;
+                }
+
                 try {
+                    mIsIdentifying = true;
                     mSpassFingerprint.startIdentify(new SpassFingerprint.IdentifyListener() {
                         @Override
                         public void onFinished(int i) {
@@ -74,6 +84,7 @@ public class SamsungFingerprint extends BaseFingerprint {
 
                         @Override
                         public void onCompleted() {
+                            mIsIdentifying = false;
                             switch (mResultCode) {
                                 case SpassFingerprint.STATUS_AUTHENTIFICATION_SUCCESS:
                                 case SpassFingerprint.STATUS_AUTHENTIFICATION_PASSWORD_SUCCESS:
@@ -91,7 +102,7 @@ public class SamsungFingerprint extends BaseFingerprint {
                                     break;
 
                                 case SpassFingerprint.STATUS_USER_CANCELLED:
-                                    // do nothing
+                                    onCancelReleased();
                                     break;
 
                                 default:
@@ -101,6 +112,7 @@ public class SamsungFingerprint extends BaseFingerprint {
                         }
                     });
                 } catch (Throwable e) {
+                    mIsIdentifying = false;
                     if (e instanceof SpassInvalidStateException) {
                         SpassInvalidStateException stateException = (SpassInvalidStateException) e;
                         if (stateException.getType() == 1) {
@@ -118,6 +130,12 @@ public class SamsungFingerprint extends BaseFingerprint {
         });
     }
 
+    // Spass finishes a running identify with STATUS_USER_CANCELLED
+    @Override
+    protected boolean isCancelConfirmedByBackend() {
+        return mIsIdentifying && mSpassFingerprint != null;
+    }
+
     @Override
     protected void doCancelIdentify() {
         runOnUiThread(new Runnable() {
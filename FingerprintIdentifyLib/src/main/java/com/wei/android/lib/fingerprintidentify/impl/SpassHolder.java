@@ -0,0 +1,51 @@
+package com.wei.android.lib.fingerprintidentify.impl;
+
+import android.content.Context;
+
+import com.samsung.android.sdk.SsdkUnsupportedException;
+import com.samsung.android.sdk.pass.Spass;
+import com.samsung.android.sdk.pass.SpassFingerprint;
+
+// the Spass SDK handle of the process, initialized once. "not supported" is remembered as well, so only
+// the first SamsungFingerprint pays for the exception on devices without Spass
+class SpassHolder {
+
+    private static final Object sLock = new Object();
+    private static volatile SpassHolder sInstance;
+    private static volatile boolean sIsUnsupported = false;
+
+    final SpassFingerprint mSpassFingerprint;
+    final boolean mIsFeatureEnabled;        // Spass.DEVICE_FINGERPRINT
+
+    private SpassHolder(SpassFingerprint spassFingerprint, boolean isFeatureEnabled) {
+        mSpassFingerprint = spassFingerprint;
+        mIsFeatureEnabled = isFeatureEnabled;
+    }
+
+    // null if Spass is not supported, other failures are thrown and retried next time
+    static SpassHolder get(Context context) throws Exception {
+        SpassHolder instance = sInstance;
+        if (instance != null || sIsUnsupported) {
+            return instance;
+        }
+
+        synchronized (sLock) {
+            if (sInstance != null || sIsUnsupported) {
+                return sInstance;
+            }
+
+            Context appContext = context.getApplicationContext();
+            Spass spass = new Spass();
+            try {
+                spass.initialize(appContext);
+            } catch (SsdkUnsupportedException e) {
+                sIsUnsupported = true;
+                throw e;
+            }
+
+            sInstance = instance = new SpassHolder(new SpassFingerprint(appContext),
+                    spass.isFeatureEnabled(Spass.DEVICE_FINGERPRINT));
+            return instance;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.wei.android.lib.fingerprintidentify.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+
+import com.wei.android.lib.fingerprintidentify.bean.FingerprintCapability;
+
+import java.io.File;
+
+/**
+ * Persists the outcome of FingerprintIdentify.init() across process starts.
+ * <p>
+ * An entry is only valid for the same system build, the same installed apk and the same probe
+ * options. Android has no cheap public enrollment id, so enrollment changes are picked up by the
+ * background re-probe which rewrites the entry when it disagrees.
+ */
+public class CapabilityCache {
+
+    private static final String PREFS_NAME = "com.wei.android.lib.fingerprintidentify.capability";
+
+    private static final String KEY_STAMP = "stamp";
+    private static final String KEY_CLASS_NAME = "class_name";
+    private static final String KEY_FINGERPRINT_ENABLE = "fingerprint_enable";
+    private static final String KEY_HARDWARE_ENABLE = "hardware_enable";
+    private static final String KEY_REGISTERED_FINGERPRINT = "registered_fingerprint";
+    private static final String KEY_CAN_AUTHENTICATE = "can_authenticate";
+
+    public static String createStamp(Context context, String probeOptions) {
+        ApplicationInfo applicationInfo = context.getApplicationInfo();
+        long apkStamp = applicationInfo == null || applicationInfo.sourceDir == null ? 0
+                : new File(applicationInfo.sourceDir).lastModified();
+        return Build.FINGERPRINT + "|" + apkStamp + "|" + probeOptions;
+    }
+
+    public static FingerprintCapability read(Context context, String stamp) {
+        SharedPreferences preferences = getPreferences(context);
+        if (!stamp.equals(preferences.getString(KEY_STAMP, null))) {
+            return null;
+        }
+
+        FingerprintCapability capability = new FingerprintCapability();
+        capability.fingerprintClassName = preferences.getString(KEY_CLASS_NAME, null);
+        capability.fingerprintEnable = preferences.getBoolean(KEY_FINGERPRINT_ENABLE, false);
+        capability.hardwareEnable = preferences.getBoolean(KEY_HARDWARE_ENABLE, false);
+        capability.registeredFingerprint = preferences.getBoolean(KEY_REGISTERED_FINGERPRINT, false);
+        capability.canAuthenticateResult = preferences.getInt(KEY_CAN_AUTHENTICATE, -1);
+        return capability;
+    }
+
+    public static void write(Context context, String stamp, FingerprintCapability capability) {
+        getPreferences(context).edit()
+                .putString(KEY_STAMP, stamp)
+                .putString(KEY_CLASS_NAME, capability.fingerprintClassName)
+                .putBoolean(KEY_FINGERPRINT_ENABLE, capability.fingerprintEnable)
+                .putBoolean(KEY_HARDWARE_ENABLE, capability.hardwareEnable)
+                .putBoolean(KEY_REGISTERED_FINGERPRINT, capability.registeredFingerprint)
+                .putInt(KEY_CAN_AUTHENTICATE, capability.canAuthenticateResult)
+                .apply();
+    }
+
+    public static void clear(Context context) {
+        getPreferences(context).edit().clear().apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,8 @@
+package com.wei.android.lib.fingerprintidentify.util;
+
+import javax.crypto.Cipher;
+
+// wraps the cipher into the backend's CryptoObject type, without reflection
+public interface CryptoObjectFactory<T> {
+    T create(Cipher cipher);
+}
@@ -1,19 +1,28 @@
 package com.wei.android.lib.fingerprintidentify.util;
 
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Build;
 import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyInfo;
 import android.security.keystore.KeyPermanentlyInvalidatedException;
 import android.security.keystore.KeyProperties;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
 import com.wei.android.lib.fingerprintidentify.BuildConfig;
 
 import java.lang.reflect.Constructor;
 import java.security.Key;
 import java.security.KeyStore;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.IvParameterSpec;
 
 public class CryptoObjectHelper {
@@ -21,26 +30,114 @@ public class CryptoObjectHelper {
     private static final String TAG = "CryptoObjectHelper";
 
     // This can be key name you want. Should be unique for the app.
-    static final String KEY_NAME = "com.wei.android.lib.fingerprintidentify";
+    public static final String KEY_NAME = "com.wei.android.lib.fingerprintidentify";
+
+    // The next key of the key rotation is generated in background under the other alias.
+    static final String KEY_NAME_STAGING = KEY_NAME + ".staging";
 
     // We always use this keystore on Android.
     static final String KEYSTORE_NAME = "AndroidKeyStore";
 
+    // the keystore is loaded once per process, key handles are kept until the key is removed or invalidated
+    private static final Object sLock = new Object();
+    private static volatile KeyStore sKeyStore;
+    private static volatile CryptoObjectHelper sInstance;
+    private static final ConcurrentHashMap<String, Key> sKeys = new ConcurrentHashMap<>();
+
+    // for callers which still pass a class instead of a CryptoObjectFactory
+    private static final ConcurrentHashMap<Class<?>, Constructor<?>> sConstructors = new ConcurrentHashMap<>();
+
+    // key generation is slow, never generate the same alias twice at the same time
+    private static final Object sGenerateLock = new Object();
+
+    private static final String PREFS_NAME = "com.wei.android.lib.fingerprintidentify.key";
+    private static final String PREFS_ACTIVE_ALIAS = "active_alias";
+    private static final String PREFS_STAGED_ALIAS = "staged_alias";
+
     final KeyStore keystore;
 
     public CryptoObjectHelper() throws Exception {
-        keystore = KeyStore.getInstance(KEYSTORE_NAME);
-        keystore.load(null);
+        keystore = getKeyStore();
+    }
+
+    public static CryptoObjectHelper getInstance() throws Exception {
+        CryptoObjectHelper instance = sInstance;
+        if (instance == null) {
+            synchronized (sLock) {
+                instance = sInstance;
+                if (instance == null) {
+                    sInstance = instance = new CryptoObjectHelper();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private static KeyStore getKeyStore() throws Exception {
+        KeyStore keyStore = sKeyStore;
+        if (keyStore == null) {
+            synchronized (sLock) {
+                keyStore = sKeyStore;
+                if (keyStore == null) {
+                    keyStore = KeyStore.getInstance(KEYSTORE_NAME);
+                    keyStore.load(null);
+                    sKeyStore = keyStore;
+                }
+            }
+        }
+        return keyStore;
     }
 
     public <T> T createCryptoObject(Class<T> tClass, int opmode, byte[] iv) throws Exception {
-        Cipher cipher = createCipher(opmode, iv, true);
-        Constructor<T> tCon = tClass.getDeclaredConstructor(Cipher.class);
+        return createCryptoObject(tClass, KEY_NAME, opmode, iv);
+    }
+
+    public <T> T createCryptoObject(Class<T> tClass, String alias, int opmode, byte[] iv) throws Exception {
+        return createCryptoObject(tClass, createCipher(alias, opmode, iv));
+    }
+
+    public <T> T createCryptoObject(Class<T> tClass, Cipher cipher) throws Exception {
+        return newCryptoObject(tClass, cipher);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T newCryptoObject(Class<T> tClass, Cipher cipher) throws Exception {
+        Constructor<T> tCon = (Constructor<T>) sConstructors.get(tClass);
+        if (tCon == null) {
+            tCon = tClass.getDeclaredConstructor(Cipher.class);
+            sConstructors.put(tClass, tCon);
+        }
         return tCon.newInstance(cipher);
     }
 
-    Cipher createCipher(int opmode, byte[] iv, boolean retry) throws Exception {
-        Key key = getKey();
+    public Cipher createCipher(String alias, int opmode, byte[] iv) throws Exception {
+        return createCipher(alias, opmode, iv, true);
+    }
+
+    // if the key is still the one a prepared cipher was initialized with
+    public boolean isCurrentKey(String alias, Key key) {
+        return key != null && sKeys.get(alias) == key;
+    }
+
+    @Nullable
+    public Key getCachedKey(String alias) {
+        return sKeys.get(alias);
+    }
+
+    // a key which needs the sensor for every use. its cipher inits fine and only doFinal fails, so ask the key
+    @RequiresApi(Build.VERSION_CODES.M)
+    public boolean isPerOperationKey(String alias) throws Exception {
+        Key key = getKey(alias);
+        if (!(key instanceof SecretKey)) {
+            return false;
+        }
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(key.getAlgorithm(), KEYSTORE_NAME);
+        KeyInfo keyInfo = (KeyInfo) factory.getKeySpec((SecretKey) key, KeyInfo.class);
+        return keyInfo.isUserAuthenticationRequired() && keyInfo.getUserAuthenticationValidityDurationSeconds() <= 0;
+    }
+
+    Cipher createCipher(String alias, int opmode, byte[] iv, boolean retry) throws Exception {
+        Key key = getKey(alias);
         Cipher cipher = Cipher.getInstance(
                 KeyProperties.KEY_ALGORITHM_AES + "/"
                         + KeyProperties.BLOCK_MODE_CBC + "/"
@@ -53,9 +150,9 @@ public class CryptoObjectHelper {
                 cipher.init(opmode, key);
             }
         } catch (KeyPermanentlyInvalidatedException e) {
-            keystore.deleteEntry(KEY_NAME);
+            removeKey(alias);
             if (retry) {
-                createCipher(opmode, iv, false);
+                return createCipher(alias, opmode, iv, false);
             } else {
                 throw new Exception("Could not create the cipher for fingerprint authentication.", e);
             }
@@ -63,32 +160,120 @@ public class CryptoObjectHelper {
         return cipher;
     }
 
-    Key getKey() throws Exception {
-        Key secretKey;
-        if (!keystore.isKeyEntry(KEY_NAME)) {
+    Key getKey(String alias) throws Exception {
+        Key secretKey = sKeys.get(alias);
+        if (secretKey != null) {
+            return secretKey;
+        }
+
+        synchronized (sGenerateLock) {
+            secretKey = sKeys.get(alias);
+            if (secretKey != null) {
+                return secretKey;
+            }
+
+            if (!keystore.isKeyEntry(alias)) {
+                try {
+                    createKey(alias, true);
+                } catch (Exception e) {
+                    Log.e(TAG, "createKey", e);
+                    createKey(alias, false);
+                }
+            }
+
+            secretKey = keystore.getKey(alias, null);
+            if (secretKey != null) {
+                sKeys.put(alias, secretKey);
+            }
+        }
+        return secretKey;
+    }
+
+    public void removeKey() {
+        removeKey(KEY_NAME);
+    }
+
+    public void removeKey(String alias) {
+        synchronized (sGenerateLock) {
+            sKeys.remove(alias);
             try {
-                createKey(true);
+                keystore.deleteEntry(alias);
             } catch (Exception e) {
-                Log.e(TAG, "createKey", e);
-                createKey(false);
+                Log.e(TAG, "removeKey", e);
             }
         }
+    }
 
-        secretKey = keystore.getKey(KEY_NAME, null);
-        return secretKey;
+    // KEY ROTATION
+    // the key used by the last succeed encryption, decryption must use the same one
+    public String getActiveKeyAlias(Context context) {
+        return getPreferences(context).getString(PREFS_ACTIVE_ALIAS, KEY_NAME);
     }
 
-    public void removeKey() {
-        try {
-            keystore.deleteEntry(KEY_NAME);
-        } catch (Exception e) {
-            Log.e(TAG, "removeKey", e);
+    // the key for the next encryption, only generated here if the background generation did not finish
+    public String getStagedKeyAlias(Context context) throws Exception {
+        String alias = getOtherAlias(getActiveKeyAlias(context));
+        boolean isReady = alias.equals(getPreferences(context).getString(PREFS_STAGED_ALIAS, null));
+        FingerprintMetrics.onStagedKeyUsed(isReady);
+        if (!isReady) {
+            generateStagedKey(context, alias);
         }
+        return alias;
+    }
+
+    // swap the staged key in after a succeed encryption, and generate the next one in background.
+    // apply() updates the preferences in memory at once, so the next decryption and the background generation
+    // already see the new alias, only the disk write is left to the preferences thread
+    public void commitStagedKey(Context context, String alias) {
+        getPreferences(context).edit()
+                .putString(PREFS_ACTIVE_ALIAS, alias)
+                .remove(PREFS_STAGED_ALIAS)
+                .apply();
+        preGenerateStagedKey(context);
+    }
+
+    // the keystore keys need API 23, below it the KeyGenParameterSpec reference throws NoClassDefFoundError
+    public static void preGenerateStagedKey(final Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+        ExecutorUtils.getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    CryptoObjectHelper helper = getInstance();
+                    helper.generateStagedKey(context, getOtherAlias(helper.getActiveKeyAlias(context)));
+                } catch (Throwable e) {
+                    Log.e(TAG, "preGenerateStagedKey", e);
+                }
+            }
+        });
+    }
+
+    private void generateStagedKey(Context context, String alias) throws Exception {
+        synchronized (sGenerateLock) {
+            SharedPreferences preferences = getPreferences(context);
+            if (alias.equals(preferences.getString(PREFS_STAGED_ALIAS, null))) {
+                return;
+            }
+
+            removeKey(alias);
+            getKey(alias);
+            preferences.edit().putString(PREFS_STAGED_ALIAS, alias).commit();
+        }
+    }
+
+    private static String getOtherAlias(String alias) {
+        return KEY_NAME.equals(alias) ? KEY_NAME_STAGING : KEY_NAME;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
     }
 
-    void createKey(boolean withValiditySeconds) throws Exception {
+    void createKey(String alias, boolean withValiditySeconds) throws Exception {
             KeyGenerator keyGen = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE_NAME);
-            KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(KEY_NAME, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+            KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
                     .setBlockModes(KeyProperties.BLOCK_MODE_CBC)
                     .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_PKCS7)
                     .setRandomizedEncryptionRequired(false)
@@ -0,0 +1,162 @@
+package com.wei.android.lib.fingerprintidentify.util;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ExecutorUtils {
+
+    private static final int THREAD_COUNT = 4;                  // key generation, prepare() and re-arms
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private static final Executor sMainThreadExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            sMainHandler.post(runnable);
+        }
+    };
+
+    private static final Executor sMainThreadOrInlineExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                runnable.run();
+            } else {
+                sMainHandler.post(runnable);
+            }
+        }
+    };
+
+    private static final Executor sDirectExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private static volatile ExecutorService sBackgroundExecutor;
+    private static volatile ExecutorService sProbeExecutor;
+    private static volatile Handler sSensorHandler;
+    private static volatile ScheduledExecutorService sScheduler;
+
+    public static Handler getMainHandler() {
+        return sMainHandler;
+    }
+
+    // always post to the main looper, the default for listener callbacks
+    public static Executor mainThread() {
+        return sMainThreadExecutor;
+    }
+
+    // run inline when already on the main thread, post otherwise
+    public static Executor mainThreadOrInline() {
+        return sMainThreadOrInlineExecutor;
+    }
+
+    // run on whatever thread the backend delivered the event
+    public static Executor direct() {
+        return sDirectExecutor;
+    }
+
+    public static ExecutorService getBackgroundExecutor() {
+        ExecutorService executor = sBackgroundExecutor;
+        if (executor == null) {
+            synchronized (ExecutorUtils.class) {
+                executor = sBackgroundExecutor;
+                if (executor == null) {
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT,
+                            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            new NamedThreadFactory("FingerprintIdentify-worker"));
+                    pool.allowCoreThreadTimeOut(true);
+                    sBackgroundExecutor = executor = pool;
+                }
+            }
+        }
+        return executor;
+    }
+
+    // a thread per backend probe, so the probe deadline never counts time spent queued behind other work
+    public static ExecutorService getProbeExecutor() {
+        ExecutorService executor = sProbeExecutor;
+        if (executor == null) {
+            synchronized (ExecutorUtils.class) {
+                executor = sProbeExecutor;
+                if (executor == null) {
+                    sProbeExecutor = executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                            new NamedThreadFactory("FingerprintIdentify-probe"));
+                }
+            }
+        }
+        return executor;
+    }
+
+    // a lightweight looper thread for sensor and crypto callbacks, so they don't wait for the UI thread
+    public static Handler getSensorHandler() {
+        Handler handler = sSensorHandler;
+        if (handler == null) {
+            synchronized (ExecutorUtils.class) {
+                handler = sSensorHandler;
+                if (handler == null) {
+                    HandlerThread thread = new HandlerThread("FingerprintIdentify-sensor");
+                    thread.setDaemon(true);
+                    thread.start();
+                    sSensorHandler = handler = new Handler(thread.getLooper());
+                }
+            }
+        }
+        return handler;
+    }
+
+    // one timer thread for every delayed library task, e.g. lockout expiry and identify timeouts
+    public static ScheduledExecutorService getScheduler() {
+        ScheduledExecutorService scheduler = sScheduler;
+        if (scheduler == null) {
+            synchronized (ExecutorUtils.class) {
+                scheduler = sScheduler;
+                if (scheduler == null) {
+                    ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1,
+                            new NamedThreadFactory("FingerprintIdentify-scheduler"));
+                    pool.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+                    pool.allowCoreThreadTimeOut(true);
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                        pool.setRemoveOnCancelPolicy(true);
+                    }
+                    sScheduler = scheduler = pool;
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    static class NamedThreadFactory implements ThreadFactory {
+
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mPrefix + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.wei.android.lib.fingerprintidentify.util;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+// process-wide counters, for tuning and monitoring
+public class FingerprintMetrics {
+
+    public static final int PATH_CRYPTO = 0;            // authenticated with the crypto object, one touch
+    public static final int PATH_SINGLE_TOUCH = 1;      // crypto-less touch, then the unlocked key built the cipher
+    public static final int PATH_TWO_TOUCH = 2;         // crypto-less touch, then a second one with the crypto object
+
+    private static final AtomicLong sStagedKeyHits = new AtomicLong();     // encryption used a pre-generated key
+    private static final AtomicLong sStagedKeyMisses = new AtomicLong();   // encryption had to wait for key generation
+
+    private static final AtomicLong[] sIdentifyPaths = {new AtomicLong(), new AtomicLong(), new AtomicLong()};
+
+    private static final AtomicLong sCancels = new AtomicLong();
+    private static final AtomicLong sCancelLatencyMillis = new AtomicLong();   // cancel to sensor released, summed
+    private static final AtomicLong sCancelTimeouts = new AtomicLong();        // released without the backend confirming
+
+    // the continuous successes of the last minute, in buckets of 5s, so the rate follows the peak hours
+    private static final int THROUGHPUT_BUCKETS = 12;
+    private static final long THROUGHPUT_BUCKET_MILLIS = 60 * 1000 / THROUGHPUT_BUCKETS;
+    private static final long[] sThroughputBucketIds = new long[THROUGHPUT_BUCKETS];  // guarded by itself
+    private static final int[] sThroughputCounts = new int[THROUGHPUT_BUCKETS];        // guarded by sThroughputBucketIds
+
+    private static final AtomicLong sContinuousAuths = new AtomicLong();        // successes in continuous mode
+    private static final AtomicLong sContinuousFailures = new AtomicLong();     // not matched users in continuous mode
+    private static final AtomicLong sContinuousRearms = new AtomicLong();
+    private static final AtomicLong sContinuousRearmGapMillis = new AtomicLong();  // result to armed again, summed
+
+    static void onStagedKeyUsed(boolean isReady) {
+        (isReady ? sStagedKeyHits : sStagedKeyMisses).incrementAndGet();
+    }
+
+    // called by the backends, one of the PATH constants
+    public static void onIdentifyPath(int path) {
+        sIdentifyPaths[path].incrementAndGet();
+    }
+
+    // called by the backends when a cancel released the sensor
+    public static void onCancelReleased(long latencyMillis, boolean confirmed) {
+        sCancels.incrementAndGet();
+        sCancelLatencyMillis.addAndGet(latencyMillis);
+        if (!confirmed) {
+            sCancelTimeouts.incrementAndGet();
+        }
+    }
+
+    // called by the backends in continuous mode
+    public static void onContinuousResult(boolean succeed) {
+        if (!succeed) {
+            sContinuousFailures.incrementAndGet();
+            return;
+        }
+
+        sContinuousAuths.incrementAndGet();
+        long bucketId = SystemClock.elapsedRealtime() / THROUGHPUT_BUCKET_MILLIS;
+        int index = (int) (bucketId % THROUGHPUT_BUCKETS);
+        synchronized (sThroughputBucketIds) {
+            if (sThroughputBucketIds[index] != bucketId) {
+                sThroughputBucketIds[index] = bucketId;
+                sThroughputCounts[index] = 0;
+            }
+            sThroughputCounts[index]++;
+        }
+    }
+
+    public static void onContinuousRearm(long gapMillis) {
+        sContinuousRearms.incrementAndGet();
+        sContinuousRearmGapMillis.addAndGet(gapMillis);
+    }
+
+    public static long getStagedKeyHits() {
+        return sStagedKeyHits.get();
+    }
+
+    public static long getStagedKeyMisses() {
+        return sStagedKeyMisses.get();
+    }
+
+    public static long getIdentifyPathCount(int path) {
+        return sIdentifyPaths[path].get();
+    }
+
+    public static long getCancels() {
+        return sCancels.get();
+    }
+
+    public static long getMeanCancelLatencyMillis() {
+        long cancels = sCancels.get();
+        return cancels == 0 ? 0 : sCancelLatencyMillis.get() / cancels;
+    }
+
+    public static long getCancelTimeouts() {
+        return sCancelTimeouts.get();
+    }
+
+    public static long getContinuousAuths() {
+        return sContinuousAuths.get();
+    }
+
+    public static long getContinuousFailures() {
+        return sContinuousFailures.get();
+    }
+
+    // successes within the sliding last minute, not averaged over the process lifetime
+    public static long getContinuousAuthsPerMinute() {
+        long oldestBucketId = SystemClock.elapsedRealtime() / THROUGHPUT_BUCKET_MILLIS - THROUGHPUT_BUCKETS;
+        long auths = 0;
+        synchronized (sThroughputBucketIds) {
+            for (int i = 0; i < THROUGHPUT_BUCKETS; i++) {
+                if (sThroughputBucketIds[i] > oldestBucketId) {
+                    auths += sThroughputCounts[i];
+                }
+            }
+        }
+        return auths;
+    }
+
+    public static long getMeanRearmGapMillis() {
+        long rearms = sContinuousRearms.get();
+        return rearms == 0 ? 0 : sContinuousRearmGapMillis.get() / rearms;
+    }
+
+    public static void reset() {
+        sStagedKeyHits.set(0);
+        sStagedKeyMisses.set(0);
+        sCancels.set(0);
+        sCancelLatencyMillis.set(0);
+        sCancelTimeouts.set(0);
+        for (AtomicLong identifyPath : sIdentifyPaths) {
+            identifyPath.set(0);
+        }
+        synchronized (sThroughputBucketIds) {
+            Arrays.fill(sThroughputBucketIds, 0);
+            Arrays.fill(sThroughputCounts, 0);
+        }
+        sContinuousAuths.set(0);
+        sContinuousFailures.set(0);
+        sContinuousRearms.set(0);
+        sContinuousRearmGapMillis.set(0);
+    }
+}
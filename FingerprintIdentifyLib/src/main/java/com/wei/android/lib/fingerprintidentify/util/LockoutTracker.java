@@ -0,0 +1,30 @@
+package com.wei.android.lib.fingerprintidentify.util;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// the temporary sensor lockout is per device, so it's tracked process-wide on the monotonic clock
+public class LockoutTracker {
+
+    public static final long LOCKOUT_MILLIS = 30 * 1000;       // FINGERPRINT_ERROR_LOCKOUT lasts 30s on AOSP
+
+    private static final AtomicLong sLockoutUntil = new AtomicLong();  // elapsedRealtime, 0 if not locked out
+
+    public static void onLockout() {
+        sLockoutUntil.set(SystemClock.elapsedRealtime() + LOCKOUT_MILLIS);
+    }
+
+    public static void clear() {
+        sLockoutUntil.set(0);
+    }
+
+    public static long getRemainingMillis() {
+        long lockoutUntil = sLockoutUntil.get();
+        return lockoutUntil == 0 ? 0 : Math.max(0, lockoutUntil - SystemClock.elapsedRealtime());
+    }
+
+    public static boolean isLockedOut() {
+        return getRemainingMillis() > 0;
+    }
+}
@@ -0,0 +1,51 @@
+package com.wei.android.lib.fingerprintidentify.base;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import javax.crypto.Cipher;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The listener dispatch of a session reuses its runnable, so once warmed up a whole session, start, not
+ * match and succeed, allocates nothing. Counted with the per-thread allocation counter of HotSpot.
+ */
+public class BaseFingerprintAllocationTest {
+
+    private static final int WARMUP_SESSIONS = 20000;
+    private static final int MEASURED_SESSIONS = 100000;
+    private static final long TOLERATED_BYTES = 1024;      // the counter itself, far below a byte per session
+
+    @Test
+    public void steadyStateSessionsDoNotAllocate() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        BaseFingerprintStateTest.FakeFingerprint fingerprint = new BaseFingerprintStateTest.FakeFingerprint();
+        for (int i = 0; i < WARMUP_SESSIONS; i++) {
+            runSession(fingerprint);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_SESSIONS; i++) {
+            runSession(fingerprint);
+        }
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(allocated + " bytes allocated by " + MEASURED_SESSIONS + " sessions", allocated <= TOLERATED_BYTES);
+    }
+
+    private static void runSession(BaseFingerprintStateTest.FakeFingerprint fingerprint) {
+        fingerprint.startIdentify(3, Cipher.ENCRYPT_MODE, null, fingerprint.mListener);
+        fingerprint.onNotMatch();
+        fingerprint.onSucceed(null);
+    }
+}
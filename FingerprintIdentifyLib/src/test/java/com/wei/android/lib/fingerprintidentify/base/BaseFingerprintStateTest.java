@@ -0,0 +1,278 @@
+package com.wei.android.lib.fingerprintidentify.base;
+
+import android.hardware.fingerprint.FingerprintManager;
+
+import androidx.annotation.Nullable;
+
+import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyEvent;
+import com.wei.android.lib.fingerprintidentify.bean.FingerprintIdentifyFailInfo;
+import com.wei.android.lib.fingerprintidentify.util.ExecutorUtils;
+import com.wei.android.lib.fingerprintidentify.util.LockoutTracker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress of the identify state machine against a fake backend: the backend results and cancelIdentify race
+ * on separate threads, every session must end with exactly one terminal event and no armed sensor.
+ */
+public class BaseFingerprintStateTest {
+
+    private static final int SESSIONS = 5000;
+
+    private ExecutorService mThreads;
+
+    @Before
+    public void setUp() {
+        mThreads = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        mThreads.shutdownNow();
+        LockoutTracker.clear();
+    }
+
+    @Test
+    public void cancelWhileArmingReleasesTheBackend() {
+        final FakeFingerprint fingerprint = new FakeFingerprint();
+        // the cancel comes in after the state moved to arming, before the backend armed the sensor
+        fingerprint.mBeforeArm = new Runnable() {
+            @Override
+            public void run() {
+                fingerprint.mBeforeArm = null;
+                fingerprint.cancelIdentify();
+            }
+        };
+
+        fingerprint.startIdentify(3, Cipher.ENCRYPT_MODE, null, fingerprint.mListener);
+
+        assertEquals(BaseFingerprint.STATE_CANCELLED, fingerprint.getIdentifyState());
+        assertFalse("the sensor is left armed", fingerprint.mIsArmed);
+        assertEquals(0, fingerprint.mListener.mTerminals.get());
+    }
+
+    @Test
+    public void resultsRacingCancelDeliverOneTerminalEvent() throws Exception {
+        final FakeFingerprint fingerprint = new FakeFingerprint();
+        final AtomicInteger terminalEvents = new AtomicInteger();
+        subscribeTerminalEvents(fingerprint, terminalEvents);
+
+        for (int session = 0; session < SESSIONS; session++) {
+            fingerprint.mListener.mTerminals.set(0);
+            terminalEvents.set(0);
+            fingerprint.startIdentify(2, Cipher.ENCRYPT_MODE, null, fingerprint.mListener);
+
+            race(new Runnable() {
+                @Override
+                public void run() {
+                    fingerprint.onSucceed(null);
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    fingerprint.onFailed(new FingerprintIdentifyFailInfo(false, 1, "error"));
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    fingerprint.onNotMatch();
+                    fingerprint.onNotMatch();
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    fingerprint.cancelIdentify();
+                }
+            });
+
+            int state = fingerprint.getIdentifyState();
+            assertTrue("not terminal: " + state, state == BaseFingerprint.STATE_SUCCEEDED
+                    || state == BaseFingerprint.STATE_FAILED || state == BaseFingerprint.STATE_CANCELLED);
+            assertEquals("listener terminals of session " + session,
+                    state == BaseFingerprint.STATE_CANCELLED ? 0 : 1, fingerprint.mListener.mTerminals.get());
+            assertEquals("terminal events of session " + session, 1, terminalEvents.get());
+            assertFalse("the sensor is left armed", fingerprint.mIsArmed);
+        }
+    }
+
+    @Test
+    public void startRacingCancelNeverLeavesACancelledSessionArmed() throws Exception {
+        final FakeFingerprint fingerprint = new FakeFingerprint();
+
+        for (int session = 0; session < SESSIONS; session++) {
+            fingerprint.cancelIdentify();
+            race(new Runnable() {
+                @Override
+                public void run() {
+                    fingerprint.startIdentify(3, Cipher.ENCRYPT_MODE, null, fingerprint.mListener);
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    fingerprint.cancelIdentify();
+                }
+            });
+
+            if (fingerprint.getIdentifyState() == BaseFingerprint.STATE_CANCELLED) {
+                assertFalse("cancelled session " + session + " is left armed", fingerprint.mIsArmed);
+            }
+        }
+        assertEquals(0, fingerprint.mListener.mTerminals.get());
+    }
+
+    @Test
+    public void cancelWithoutASessionLeavesTheBackendAlone() {
+        FakeFingerprint fingerprint = new FakeFingerprint();
+        fingerprint.cancelIdentify();
+        assertEquals(0, fingerprint.mBackendCancels.get());
+
+        fingerprint.startIdentify(3, Cipher.ENCRYPT_MODE, null, fingerprint.mListener);
+        fingerprint.onSucceed(null);
+        assertEquals(1, fingerprint.mBackendCancels.get());
+
+        fingerprint.cancelIdentify();
+        assertEquals(1, fingerprint.mBackendCancels.get());
+    }
+
+    @Test
+    public void onlyALockoutWithinTheSessionRejectsTheNextStart() {
+        FakeFingerprint fingerprint = new FakeFingerprint();
+        FingerprintIdentifyFailInfo lockout = new FingerprintIdentifyFailInfo(true,
+                FingerprintManager.FINGERPRINT_ERROR_LOCKOUT, "locked out");
+
+        // reported at the start, the lockout began at an unknown time before
+        fingerprint.startIdentify(3, Cipher.ENCRYPT_MODE, null, fingerprint.mListener);
+        fingerprint.onFailed(lockout);
+        assertEquals(1, fingerprint.mListener.mStartFailures.get());
+        assertFalse(LockoutTracker.isLockedOut());
+
+        fingerprint.startIdentify(3, Cipher.ENCRYPT_MODE, null, fingerprint.mListener);
+        fingerprint.onNotMatch();
+        fingerprint.onFailed(lockout);
+        assertEquals(1, fingerprint.mListener.mStartFailures.get());
+        assertTrue(LockoutTracker.isLockedOut());
+
+        // rejected without arming, through the start failure contract
+        fingerprint.startIdentify(3, Cipher.ENCRYPT_MODE, null, fingerprint.mListener);
+        assertEquals(2, fingerprint.mListener.mStartFailures.get());
+        assertEquals(BaseFingerprint.STATE_FAILED, fingerprint.getIdentifyState());
+        assertFalse("the sensor is armed", fingerprint.mIsArmed);
+    }
+
+    private static void subscribeTerminalEvents(FakeFingerprint fingerprint, final AtomicInteger terminalEvents) {
+        IdentifyEventPublisher eventPublisher = new IdentifyEventPublisher();
+        eventPublisher.subscribe(new IdentifyEventPublisher.EventListener() {
+            @Override
+            public void onEvent(FingerprintIdentifyEvent event) {
+                if (event.isTerminal()) {
+                    terminalEvents.incrementAndGet();
+                }
+            }
+        }, ExecutorUtils.direct(), 1024);
+        fingerprint.setEventPublisher(eventPublisher);
+    }
+
+    // runs the tasks at the same time and waits for all of them
+    private void race(Runnable... tasks) throws Exception {
+        final CountDownLatch gate = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (final Runnable task : tasks) {
+            futures.add(mThreads.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    task.run();
+                }
+            }));
+        }
+
+        gate.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    static class FakeFingerprint extends BaseFingerprint {
+
+        final CountingListener mListener = new CountingListener();
+        volatile boolean mIsArmed = false;
+        volatile Runnable mBeforeArm;
+        final AtomicInteger mBackendCancels = new AtomicInteger();
+
+        FakeFingerprint() {
+            super(null, null);
+            setHardwareEnable(true);
+            setRegisteredFingerprint(true);
+            setCallbackExecutor(ExecutorUtils.direct());
+        }
+
+        @Override
+        protected void doIdentify() {
+            Runnable beforeArm = mBeforeArm;
+            if (beforeArm != null) {
+                beforeArm.run();
+            }
+            // a real backend takes a while to arm, widen the window a racing cancel can hit
+            Thread.yield();
+            mIsArmed = true;
+        }
+
+        @Override
+        protected void doCancelIdentify() {
+            mBackendCancels.incrementAndGet();
+            mIsArmed = false;
+        }
+
+        @Override
+        protected boolean needToCallDoIdentifyAgainAfterNotMatch() {
+            return false;
+        }
+    }
+
+    static class CountingListener implements BaseFingerprint.IdentifyListener {
+
+        final AtomicInteger mTerminals = new AtomicInteger();
+        final AtomicInteger mStartFailures = new AtomicInteger();
+
+        @Override
+        public void onSucceed(@Nullable Cipher cipher) {
+            mTerminals.incrementAndGet();
+        }
+
+        @Override
+        public void onNotMatch(int availableTimes) {
+        }
+
+        @Override
+        public void onFailed(FingerprintIdentifyFailInfo failInfo) {
+            mTerminals.incrementAndGet();
+        }
+
+        @Override
+        public void onStartFailedByDeviceLocked() {
+            mTerminals.incrementAndGet();
+            mStartFailures.incrementAndGet();
+        }
+    }
+}
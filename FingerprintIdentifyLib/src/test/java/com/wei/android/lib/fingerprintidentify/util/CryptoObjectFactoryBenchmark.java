@@ -0,0 +1,77 @@
+package com.wei.android.lib.fingerprintidentify.util;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+
+import javax.crypto.Cipher;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Per-auth cost of wrapping the cipher into a CryptoObject, the typed factory against the reflection
+ * it replaced, with and without the cached constructor. Skipped by the normal test run, run it with:
+ * ./gradlew :FingerprintIdentifyLib:testDebugUnitTest -Pbenchmark --tests '*CryptoObjectFactoryBenchmark'
+ */
+public class CryptoObjectFactoryBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 200000;
+    private static final int MEASURE_ITERATIONS = 1000000;
+    private static final int ROUNDS = 5;                // the best round is reported, the others absorb JIT noise
+
+    private static final CryptoObjectFactory<FakeCryptoObject> FACTORY = cipher -> new FakeCryptoObject(cipher);
+
+    // keeps the results alive, so the JIT can't drop the allocations
+    private static volatile Object sSink;
+
+    @Test
+    public void compareCryptoObjectCreation() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("fingerprintidentify.benchmark"));
+
+        Operation factory = () -> FACTORY.create(null);
+        Operation cachedReflection = () -> CryptoObjectHelper.newCryptoObject(FakeCryptoObject.class, null);
+        Operation uncachedReflection = () -> {
+            Constructor<FakeCryptoObject> constructor = FakeCryptoObject.class.getDeclaredConstructor(Cipher.class);
+            return constructor.newInstance((Cipher) null);
+        };
+
+        double[] best = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        for (int round = 0; round < ROUNDS; round++) {
+            best[0] = Math.min(best[0], measure(factory));
+            best[1] = Math.min(best[1], measure(cachedReflection));
+            best[2] = Math.min(best[2], measure(uncachedReflection));
+        }
+
+        assertNotNull(sSink);
+        String results = String.format("factory %.1f, cached Constructor.newInstance %.1f, "
+                + "uncached Constructor.newInstance %.1f ns/op", best[0], best[1], best[2]);
+        assertTrue(results, best[0] < best[2] && best[1] < best[2]);
+    }
+
+    private static double measure(Operation operation) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            sSink = operation.run();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+            sSink = operation.run();
+        }
+        return (System.nanoTime() - start) / (double) MEASURE_ITERATIONS;
+    }
+
+    private interface Operation {
+        Object run() throws Exception;
+    }
+
+    static class FakeCryptoObject {
+
+        final Cipher mCipher;
+
+        FakeCryptoObject(Cipher cipher) {
+            mCipher = cipher;
+        }
+    }
+}
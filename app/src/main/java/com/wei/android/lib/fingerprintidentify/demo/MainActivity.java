@@ -13,11 +13,15 @@ import com.wei.android.lib.fingerprintidentify.base.BaseFingerprint;
 
 import androidx.appcompat.app.AppCompatActivity;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class MainActivity extends AppCompatActivity {
 
     private TextView mTvTips;
     private ScrollView mScrollView;
     private FingerprintIdentify mFingerprintIdentify;
+    private final ExecutorService mInitExecutor = Executors.newSingleThreadExecutor();
 
     private static final int MAX_AVAILABLE_TIMES = 3;
 
@@ -28,8 +32,8 @@ public class MainActivity extends AppCompatActivity {
         mTvTips = findViewById(R.id.mTvTips);
         mScrollView = findViewById(R.id.mScrollView);
 
-        long time = System.currentTimeMillis();
-        append("new FingerprintIdentify().init() ");
+        final long time = System.currentTimeMillis();
+        append("new FingerprintIdentify().initAsync() ");
         mFingerprintIdentify = new FingerprintIdentify(getApplicationContext());
         mFingerprintIdentify.setSupportAndroidL(true);
         mFingerprintIdentify.setExceptionListener(new BaseFingerprint.ExceptionListener() {
@@ -38,19 +42,22 @@ public class MainActivity extends AppCompatActivity {
                 append("\nException：" + exception.getLocalizedMessage());
             }
         });
-        mFingerprintIdentify.init();
-
-        append("\n" + getString(R.string.time) + (System.currentTimeMillis() - time) + "ms");
-        append("\nisHardwareEnable() " + mFingerprintIdentify.isHardwareEnable());
-        append("\nisRegisteredFingerprint() " + mFingerprintIdentify.isRegisteredFingerprint());
-        append("\nisFingerprintEnable() " + mFingerprintIdentify.isFingerprintEnable());
-
-        if (!mFingerprintIdentify.isFingerprintEnable()) {
-            append("\n" + getString(R.string.not_support));
-            return;
-        }
-
-        append("\n" + getString(R.string.click_to_start));
+        mFingerprintIdentify.initAsync(mInitExecutor, new FingerprintIdentify.InitListener() {
+            @Override
+            public void onInitFinished(FingerprintIdentify fingerprintIdentify) {
+                append("\n" + getString(R.string.time) + (System.currentTimeMillis() - time) + "ms");
+                append("\nisHardwareEnable() " + fingerprintIdentify.isHardwareEnable());
+                append("\nisRegisteredFingerprint() " + fingerprintIdentify.isRegisteredFingerprint());
+                append("\nisFingerprintEnable() " + fingerprintIdentify.isFingerprintEnable());
+
+                if (!fingerprintIdentify.isFingerprintEnable()) {
+                    append("\n" + getString(R.string.not_support));
+                    return;
+                }
+
+                append("\n" + getString(R.string.click_to_start));
+            }
+        });
     }
 
     private void append(String msg) {
@@ -106,5 +113,6 @@ public class MainActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         mFingerprintIdentify.cancelIdentify();
+        mInitExecutor.shutdown();
     }
 }